@@ -0,0 +1,227 @@
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limites de débito dos uploads e dos downloads, globais e por peer, com
+// token buckets.
+//
+// Um upload paga os bytes do bloco antes de o escrever na ligação, fora do
+// lock de escrita, para que pesquisas e handshakes na mesma ligação nunca
+// esperem por um bloco atrasado pelo limite. O upload não espera aqui: recebe
+// o atraso e o Node agenda a escrita, sem ocupar uma thread de upload que faria
+// falta aos peers sem limite. Um download paga o tamanho de
+// cada pedido antes de o enviar: as respostas chegam ao ritmo do limite sem
+// que a leitura das ligações pare. Nos uploads o peer é o endereço remoto da
+// ligação; nos downloads é host:porta. O bucket de um peer parado há algum
+// tempo e sem dívida é descartado.
+//
+// As taxas estão em bytes por segundo (0 é sem limite) e podem ser mudadas em
+// execução. Valores iniciais, em KB/s: isctorrent.uploadKBps,
+// isctorrent.uploadKBpsPerPeer, isctorrent.downloadKBps e
+// isctorrent.downloadKBpsPerPeer (todos 0).
+public class BandwidthLimiter {
+
+    // Débito que um bucket parado pode acumular, em segundos à taxa configurada
+    private static final double BURST_SECONDS = 1.0;
+    // Tempo sem pedidos ao fim do qual o bucket de um peer sem dívida é descartado
+    private static final long IDLE_PEER_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Direction upload;
+    private final Direction download;
+
+    public BandwidthLimiter(long uploadRate, long uploadRatePerPeer, long downloadRate, long downloadRatePerPeer) {
+        this.upload = new Direction(uploadRate, uploadRatePerPeer);
+        this.download = new Direction(downloadRate, downloadRatePerPeer);
+    }
+
+    public static BandwidthLimiter fromSystemProperties() {
+        return new BandwidthLimiter(
+                Long.getLong("isctorrent.uploadKBps", 0) * 1024,
+                Long.getLong("isctorrent.uploadKBpsPerPeer", 0) * 1024,
+                Long.getLong("isctorrent.downloadKBps", 0) * 1024,
+                Long.getLong("isctorrent.downloadKBpsPerPeer", 0) * 1024);
+    }
+
+    // Retira os bytes aos limites de upload e devolve quantos nanossegundos o envio
+    // ao peer tem de esperar
+    public long reserveUpload(String peer, int bytes) {
+        return upload.reserve(peer, bytes);
+    }
+
+    // Devolve bytes reservados para um envio que foi cancelado antes de ser feito
+    public void refundUpload(String peer, int bytes) {
+        upload.refund(peer, bytes);
+    }
+
+    // Espera até os limites de download permitirem pedir bytes ao peer
+    public void acquireDownload(String peer, int bytes) throws InterruptedException {
+        download.acquire(peer, bytes);
+    }
+
+    public long getUploadRate() {
+        return upload.total.getRate();
+    }
+
+    public void setUploadRate(long bytesPerSecond) {
+        upload.total.setRate(bytesPerSecond);
+    }
+
+    public long getUploadRatePerPeer() {
+        return upload.perPeerRate;
+    }
+
+    public void setUploadRatePerPeer(long bytesPerSecond) {
+        upload.setPerPeerRate(bytesPerSecond);
+    }
+
+    public long getDownloadRate() {
+        return download.total.getRate();
+    }
+
+    public void setDownloadRate(long bytesPerSecond) {
+        download.total.setRate(bytesPerSecond);
+    }
+
+    public long getDownloadRatePerPeer() {
+        return download.perPeerRate;
+    }
+
+    public void setDownloadRatePerPeer(long bytesPerSecond) {
+        download.setPerPeerRate(bytesPerSecond);
+    }
+
+    // Tempo total de espera imposto pelos limites, em milissegundos
+    public long getUploadWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(upload.waitedNanos.get());
+    }
+
+    public long getDownloadWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(download.waitedNanos.get());
+    }
+
+    // Limites de um sentido: o bucket global e um bucket por peer
+    private static class Direction {
+
+        private final TokenBucket total;
+        private final Map<String, TokenBucket> peers = new ConcurrentHashMap<>();
+        private volatile long perPeerRate;
+        private final AtomicLong waitedNanos = new AtomicLong();
+        private final AtomicLong lastPrune = new AtomicLong(System.nanoTime());
+
+        private Direction(long rate, long perPeerRate) {
+            this.total = new TokenBucket(rate);
+            this.perPeerRate = perPeerRate;
+        }
+
+        private void acquire(String peer, int bytes) throws InterruptedException {
+            long wait = reserve(peer, bytes);
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        private long reserve(String peer, int bytes) {
+            long wait = total.reserve(bytes);
+            if (perPeerRate > 0 && peer != null) {
+                wait = Math.max(wait, peers.computeIfAbsent(peer, p -> new TokenBucket(perPeerRate)).reserve(bytes));
+                pruneIdlePeers();
+            }
+            if (wait > 0) {
+                waitedNanos.addAndGet(wait);
+            }
+            return wait;
+        }
+
+        private void refund(String peer, int bytes) {
+            total.refund(bytes);
+            TokenBucket bucket = peer != null ? peers.get(peer) : null;
+            if (bucket != null) {
+                bucket.refund(bytes);
+            }
+        }
+
+        // No máximo uma vez por intervalo, descarta os buckets dos peers que deixaram
+        // de pedir: sem isto o mapa ganhava um bucket por endereço e nunca encolhia
+        private void pruneIdlePeers() {
+            long now = System.nanoTime();
+            long last = lastPrune.get();
+            if (now - last < IDLE_PEER_NANOS || !lastPrune.compareAndSet(last, now)) {
+                return;
+            }
+            peers.values().removeIf(bucket -> bucket.isIdle(now));
+        }
+
+        private void setPerPeerRate(long rate) {
+            perPeerRate = rate;
+            if (rate <= 0) {
+                peers.clear();
+                return;
+            }
+            for (TokenBucket bucket : peers.values()) {
+                bucket.setRate(rate);
+            }
+        }
+    }
+
+    // Token bucket com dívida: quem pede mais do que há leva os bytes na mesma e
+    // espera o tempo que a taxa leva a repô-los. Assim um pedido maior do que a
+    // capacidade do bucket também passa, e a média nunca excede a taxa.
+    private static class TokenBucket {
+
+        private long rate;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+        private long lastReserve = lastRefill;
+
+        private TokenBucket(long rate) {
+            this.rate = Math.max(0, rate);
+        }
+
+        private synchronized long getRate() {
+            return rate;
+        }
+
+        private synchronized void setRate(long rate) {
+            refill();
+            this.rate = Math.max(0, rate);
+            if (this.rate == 0) {
+                tokens = 0;  // Sem limite: a dívida anterior é esquecida
+            }
+        }
+
+        // Retira os bytes e devolve quantos nanossegundos quem os pediu tem de esperar
+        private synchronized long reserve(int bytes) {
+            if (rate == 0) {
+                return 0;
+            }
+            refill();
+            lastReserve = lastRefill;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        private synchronized void refund(int bytes) {
+            if (rate == 0) {
+                return;
+            }
+            refill();
+            tokens = Math.min(rate * BURST_SECONDS, tokens + bytes);
+        }
+
+        // Sem pedidos há IDLE_PEER_NANOS e com a dívida paga: descartá-lo só perde crédito acumulado
+        private synchronized boolean isIdle(long now) {
+            refill();
+            return now - lastReserve >= IDLE_PEER_NANOS && tokens >= 0;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(rate * BURST_SECONDS, tokens + (now - lastRefill) * rate / 1e9);
+            }
+            lastRefill = now;
+        }
+    }
+}
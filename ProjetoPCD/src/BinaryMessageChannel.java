@@ -0,0 +1,83 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+// Transporte pelo protocolo binário com tramas prefixadas pelo tamanho
+public class BinaryMessageChannel implements MessageChannel {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    // Canal do socket, quando existe, para enviar blocos com transferTo
+    private final WritableByteChannel zeroCopyTarget;
+
+    public BinaryMessageChannel(InputStream rawIn, OutputStream rawOut) {
+        this(rawIn, rawOut, null);
+    }
+
+    public BinaryMessageChannel(InputStream rawIn, OutputStream rawOut, WritableByteChannel zeroCopyTarget) {
+        this.zeroCopyTarget = zeroCopyTarget;
+        InputStream bufferedIn = rawIn instanceof BufferedInputStream ? rawIn : new BufferedInputStream(rawIn, BUFFER_SIZE);
+        this.in = new DataInputStream(bufferedIn);
+        this.out = new DataOutputStream(new BufferedOutputStream(rawOut, BUFFER_SIZE));
+    }
+
+    @Override
+    public void writeMessage(long requestId, Object message) throws IOException {
+        synchronized (out) {
+            if (message instanceof FileRegion region) {
+                if (zeroCopyTarget != null) {
+                    // Cabeçalho pelo stream e dados diretamente do ficheiro para o socket
+                    try {
+                        MessageCodec.writeBlockAnswerHeader(out, requestId, region.getFileName(), region.getOffset(), region.getLength());
+                        out.flush();
+                        region.transferTo(zeroCopyTarget);
+                    } catch (IOException e) {
+                        abort();
+                        throw e;
+                    }
+                    return;
+                }
+                message = new FileBlockAnswerMessage(region.getFileName(), region.getOffset(), region.readData());
+            }
+            try {
+                MessageCodec.writeFrame(out, requestId, message);
+                out.flush();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+    }
+
+    // Uma trama enviada em parte dessincroniza o peer, que leria a trama seguinte
+    // como o resto desta: a ligação é fechada sem tentar enviar o que está no buffer
+    private void abort() {
+        try {
+            in.close();     // Fecha o socket
+        } catch (IOException e) {
+            // Ignora, a ligação já está a ser fechada
+        }
+    }
+
+    @Override
+    public MessageFrame readMessage() throws IOException {
+        return MessageCodec.readFrame(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
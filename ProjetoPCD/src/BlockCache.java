@@ -0,0 +1,292 @@
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Cache dos blocos mais pedidos pelos peers, para que vários downloads do
+// mesmo ficheiro popular sejam servidos da memória em vez de relerem o disco.
+// As entradas são blocos de DownloadTaskManager.BLOCK_SIZE, identificados pelo
+// hash do conteúdo e pelo índice do bloco.
+//
+// A política segue o W-TinyLFU: um esboço de frequências (count-min, com os
+// contadores reduzidos a metade periodicamente) regista todos os acessos; um
+// bloco só entra depois de pedido pelo menos ADMISSION_FREQUENCY vezes, numa
+// janela LRU pequena; quem sai da janela só passa para a parte principal (LRU)
+// se for mais pedido do que o bloco que teria de sair de lá. Assim um
+// download isolado, que lê cada bloco uma vez, não expulsa os blocos
+// populares nem chega a ser copiado para a memória.
+//
+// Configuração: isctorrent.blockCacheMb (64; 0 desliga a cache) e
+// isctorrent.blockCacheDirect (false), para guardar os blocos fora da heap.
+public class BlockCache {
+
+    private static final int BLOCK_SIZE = DownloadTaskManager.BLOCK_SIZE;
+    // Pedidos de um bloco antes de ele poder entrar na cache
+    private static final int ADMISSION_FREQUENCY = 2;
+    // Parte da capacidade ocupada pela janela
+    private static final double WINDOW_FRACTION = 0.01;
+
+    private final long capacityBytes;
+    private final long windowCapacity;
+    private final boolean direct;
+    private final FrequencySketch sketch;
+
+    // Por ordem de acesso: o primeiro é o menos usado recentemente
+    private final LinkedHashMap<BlockKey, ByteBuffer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<BlockKey, ByteBuffer> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes = 0;
+    private long mainBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public BlockCache(long capacityBytes, boolean direct) {
+        this.capacityBytes = capacityBytes;
+        this.windowCapacity = Math.max(BLOCK_SIZE, (long) (capacityBytes * WINDOW_FRACTION));
+        this.direct = direct;
+        this.sketch = new FrequencySketch((int) Math.max(16, capacityBytes / BLOCK_SIZE));
+    }
+
+    public static BlockCache fromSystemProperties() {
+        long megabytes = Long.getLong("isctorrent.blockCacheMb", 64);
+        return new BlockCache(megabytes * 1024 * 1024, Boolean.getBoolean("isctorrent.blockCacheDirect"));
+    }
+
+    public boolean isEnabled() {
+        return capacityBytes > 0;
+    }
+
+    // Resposta a um pedido de blocos a partir da memória, ou null se algum bloco não estiver
+    // (nem puder entrar) na cache; nesse caso o pedido é servido do ficheiro. Os blocos
+    // pedidos vezes suficientes são lidos de channel e guardados.
+    public FileRegion serve(BigInteger hash, String fileName, long offset, int length, FileChannel channel) throws IOException {
+        if (!isEnabled() || hash == null || length <= 0) {
+            return null;
+        }
+        long end = offset + length;
+        int first = (int) (offset / BLOCK_SIZE);
+        int last = (int) ((end - 1) / BLOCK_SIZE);
+        ByteBuffer[] parts = new ByteBuffer[last - first + 1];
+        boolean complete = true;
+        for (int index = first; index <= last; index++) {
+            BlockKey key = new BlockKey(hash, index);
+            ByteBuffer block = get(key);
+            if (block == null && admits(key)) {
+                block = load(channel, index);
+                put(key, block);
+            }
+            if (block == null) {
+                complete = false;  // Os acessos aos outros blocos continuam a contar
+                continue;
+            }
+            // Só a parte do bloco que o pedido cobre
+            long blockStart = (long) index * BLOCK_SIZE;
+            int from = (int) (Math.max(offset, blockStart) - blockStart);
+            int to = (int) Math.min(block.limit(), Math.min(end, blockStart + BLOCK_SIZE) - blockStart);
+            if (to <= from) {
+                complete = false;
+                continue;
+            }
+            ByteBuffer part = block.duplicate();
+            part.position(from).limit(to);
+            parts[index - first] = part;
+        }
+        return complete ? new FileRegion(fileName, offset, parts) : null;
+    }
+
+    private ByteBuffer load(FileChannel channel, int index) throws IOException {
+        long position = (long) index * BLOCK_SIZE;
+        int size = (int) Math.max(0, Math.min(BLOCK_SIZE, channel.size() - position));
+        ByteBuffer block = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        while (block.hasRemaining()) {
+            if (channel.read(block, position + block.position()) < 0) {
+                break;
+            }
+        }
+        block.flip();
+        return block.asReadOnlyBuffer();
+    }
+
+    private synchronized ByteBuffer get(BlockKey key) {
+        sketch.increment(key.hashCode());
+        ByteBuffer block = window.get(key);
+        if (block == null) {
+            block = main.get(key);
+        }
+        if (block == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return block;
+    }
+
+    private synchronized boolean admits(BlockKey key) {
+        return sketch.frequency(key.hashCode()) >= ADMISSION_FREQUENCY && !window.containsKey(key) && !main.containsKey(key);
+    }
+
+    // Os blocos novos entram na janela; os que saem dela disputam a parte principal
+    private synchronized void put(BlockKey key, ByteBuffer block) {
+        if (window.containsKey(key) || main.containsKey(key)) {
+            return;  // Outro upload carregou o mesmo bloco entretanto
+        }
+        window.put(key, block);
+        windowBytes += block.capacity();
+        while (windowBytes > windowCapacity && window.size() > 1) {
+            Iterator<Map.Entry<BlockKey, ByteBuffer>> eldest = window.entrySet().iterator();
+            Map.Entry<BlockKey, ByteBuffer> candidate = eldest.next();
+            eldest.remove();
+            windowBytes -= candidate.getValue().capacity();
+            promote(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    private void promote(BlockKey key, ByteBuffer block) {
+        long mainCapacity = capacityBytes - windowCapacity;
+        int frequency = sketch.frequency(key.hashCode());
+        while (mainBytes + block.capacity() > mainCapacity) {
+            Iterator<Map.Entry<BlockKey, ByteBuffer>> eldest = main.entrySet().iterator();
+            if (!eldest.hasNext()) {
+                evictions++;
+                return;  // Não cabe na cache
+            }
+            Map.Entry<BlockKey, ByteBuffer> victim = eldest.next();
+            if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+                evictions++;
+                return;  // O bloco da parte principal é mais pedido: fica ele
+            }
+            eldest.remove();
+            mainBytes -= victim.getValue().capacity();
+            evictions++;
+        }
+        main.put(key, block);
+        mainBytes += block.capacity();
+    }
+
+    // O conteúdo deixou de ser partilhado: os seus blocos saem da cache
+    public synchronized void invalidate(BigInteger hash) {
+        windowBytes -= removeAll(window, hash);
+        mainBytes -= removeAll(main, hash);
+    }
+
+    private static long removeAll(Map<BlockKey, ByteBuffer> segment, BigInteger hash) {
+        long removed = 0;
+        Iterator<Map.Entry<BlockKey, ByteBuffer>> it = segment.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<BlockKey, ByteBuffer> entry = it.next();
+            if (entry.getKey().hash.equals(hash)) {
+                removed += entry.getValue().capacity();
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized long getSizeBytes() {
+        return windowBytes + mainBytes;
+    }
+
+    public synchronized int getBlockCount() {
+        return window.size() + main.size();
+    }
+
+    private static class BlockKey {
+
+        private final BigInteger hash;
+        private final int index;
+
+        private BlockKey(BigInteger hash, int index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlockKey other && index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hash, index);
+        }
+    }
+
+    // Esboço count-min das frequências de acesso, com contadores até 15. Ao fim de
+    // 10 acessos por entrada da cache todos os contadores passam a metade, para
+    // que blocos que deixaram de ser pedidos percam peso.
+    private static class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maxEntries - 1) * 2);
+            this.counters = new int[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * maxEntries;
+        }
+
+        private void increment(int hash) {
+            for (int row = 0; row < DEPTH; row++) {
+                int column = index(hash, row);
+                if (counters[row][column] < MAX_COUNT) {
+                    counters[row][column]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (int[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compressão dos blocos enviados aos peers que a aceitaram no handshake.
+//
+// Cada ficheiro é avaliado pelos primeiros SAMPLE_BLOCKS blocos pedidos: se
+// no conjunto não ficarem pelo menos MIN_SAVING mais pequenos (ficheiros já
+// comprimidos, como .mp3 ou .zip), o ficheiro deixa de ser comprimido e os
+// blocos voltam a seguir diretamente do ficheiro para o socket. Num ficheiro
+// compressível, um bloco que não encolha segue também sem compressão.
+//
+// Configuração: isctorrent.compression (true) e isctorrent.compressionLevel
+// (1, o nível mais rápido do Deflater).
+public class BlockCompressor {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("isctorrent.compression", "true"));
+    private static final int LEVEL = Integer.getInteger("isctorrent.compressionLevel", Deflater.BEST_SPEED);
+    private static final int SAMPLE_BLOCKS = 4;
+    // Parte do tamanho original que a compressão tem de poupar para valer a pena
+    private static final double MIN_SAVING = 0.1;
+
+    // Resultado da compressão de cada ficheiro, pelo hash do conteúdo
+    private final Map<BigInteger, Sample> samples = new ConcurrentHashMap<>();
+    // Deflaters reutilizados entre blocos (as threads de upload podem ser virtuais)
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong compressedBlocks = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    // false se o ficheiro já se mostrou pouco compressível
+    public boolean worthTrying(BigInteger hash) {
+        Sample sample = samples.get(hash);
+        return sample == null || sample.isCompressible();
+    }
+
+    // Dados comprimidos do bloco, ou null se não encolherem o suficiente
+    public byte[] compress(BigInteger hash, String fileName, byte[] data) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL);
+        }
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            // Só interessa um resultado abaixo deste tamanho: a compressão para aí
+            int limit = (int) (data.length * (1 - MIN_SAVING));
+            byte[] output = new byte[limit];
+            int size = 0;
+            while (!deflater.finished() && size < limit) {
+                size += deflater.deflate(output, size, limit - size);
+            }
+            boolean shrunk = deflater.finished();
+            record(hash, fileName, data.length, shrunk ? size : data.length);
+            if (!shrunk) {
+                return null;
+            }
+            compressedBlocks.incrementAndGet();
+            bytesSaved.addAndGet(data.length - size);
+            return Arrays.copyOf(output, size);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    private void record(BigInteger hash, String fileName, int original, int compressed) {
+        Sample sample = samples.computeIfAbsent(hash, h -> new Sample());
+        if (sample.add(original, compressed)) {
+            System.out.println("[INFO] Ficheiro pouco compressível, blocos enviados sem compressão: " + fileName);
+        }
+    }
+
+    // O conteúdo deixou de ser partilhado
+    public void invalidate(BigInteger hash) {
+        samples.remove(hash);
+    }
+
+    public long getCompressedBlocks() {
+        return compressedBlocks.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    // Descomprime um bloco recebido, que tem de ter exatamente length bytes
+    public static byte[] inflate(byte[] compressed, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[length];
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int n = inflater.inflate(data, size, length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != length || !inflater.finished()) {
+                throw new IOException("Bloco comprimido inválido");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Bloco comprimido inválido: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Blocos de um ficheiro já comprimidos e quanto encolheram
+    private static class Sample {
+
+        private int blocks = 0;
+        private long originalBytes = 0;
+        private long compressedBytes = 0;
+        private volatile boolean compressible = true;
+
+        private boolean isCompressible() {
+            return compressible;
+        }
+
+        // Devolve true quando o ficheiro passa a ser considerado pouco compressível
+        private synchronized boolean add(int original, int compressed) {
+            if (!compressible) {
+                return false;
+            }
+            blocks++;
+            originalBytes += original;
+            compressedBytes += compressed;
+            if (blocks >= SAMPLE_BLOCKS && compressedBytes > originalBytes * (1 - MIN_SAVING)) {
+                compressible = false;
+                return true;
+            }
+            return false;
+        }
+    }
+}
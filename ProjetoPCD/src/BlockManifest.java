@@ -0,0 +1,102 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// Lista dos hashes SHA-256 de cada bloco de um ficheiro (ou de uma parte
+// dos blocos), usada para verificar cada bloco assim que chega
+public class BlockManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int HASH_SIZE = 32;
+
+    private final BigInteger fileHash;
+    private final int blockSize;
+    private final int firstBlock;
+    private final byte[] blockHashes;    // HASH_SIZE bytes por bloco, seguidos
+
+    public BlockManifest(BigInteger fileHash, int blockSize, int firstBlock, byte[] blockHashes) {
+        this.fileHash = fileHash;
+        this.blockSize = blockSize;
+        this.firstBlock = firstBlock;
+        this.blockHashes = blockHashes;
+    }
+
+    // Calcula o manifesto de um ficheiro, lendo um bloco de cada vez
+    public static BlockManifest compute(BigInteger fileHash, File file, int blockSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int blocks = (int) ((size + blockSize - 1) / blockSize);
+            byte[] hashes = new byte[blocks * HASH_SIZE];
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+
+            for (int i = 0; i < blocks; i++) {
+                buffer.clear();
+                long position = (long) i * blockSize;
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // Continua até encher o bloco ou chegar ao fim do ficheiro
+                }
+                digest.update(buffer.array(), 0, buffer.position());
+                System.arraycopy(digest.digest(), 0, hashes, i * HASH_SIZE, HASH_SIZE);
+            }
+            return new BlockManifest(fileHash, blockSize, 0, hashes);
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 não disponível", e);
+        }
+    }
+
+    // Parte do manifesto com os blocos [first, first + count)
+    public BlockManifest slice(int first, int count) {
+        int from = Math.max(0, Math.min(first - firstBlock, getBlockCount()));
+        int to = Math.max(from, Math.min(from + count, getBlockCount()));
+        return new BlockManifest(fileHash, blockSize, firstBlock + from,
+                Arrays.copyOfRange(blockHashes, from * HASH_SIZE, to * HASH_SIZE));
+    }
+
+    // Verifica se os dados recebidos correspondem ao hash do bloco
+    public boolean verify(int blockIndex, byte[] data, int dataOffset, int length, MessageDigest digest) {
+        int index = blockIndex - firstBlock;
+        if (index < 0 || index >= getBlockCount()) {
+            return false;
+        }
+        digest.reset();
+        digest.update(data, dataOffset, length);
+        byte[] actual = digest.digest();
+        return Arrays.equals(actual, 0, HASH_SIZE, blockHashes, index * HASH_SIZE, (index + 1) * HASH_SIZE);
+    }
+
+    public BigInteger getFileHash() {
+        return fileHash;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getBlockCount() {
+        return blockHashes.length / HASH_SIZE;
+    }
+
+    public byte[] getBlockHashes() {
+        return blockHashes;
+    }
+}
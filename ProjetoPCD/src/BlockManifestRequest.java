@@ -0,0 +1,31 @@
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+// Pede os hashes de uma parte dos blocos de um ficheiro
+public class BlockManifestRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BigInteger fileHash;
+    private final int firstBlock;
+    private final int blockCount;
+
+    public BlockManifestRequest(BigInteger fileHash, int firstBlock, int blockCount) {
+        this.fileHash = fileHash;
+        this.firstBlock = firstBlock;
+        this.blockCount = blockCount;
+    }
+
+    public BigInteger getFileHash() {
+        return fileHash;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+}
@@ -0,0 +1,367 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
+
+// Distribui os blocos de um download pelos peers sem um cadeado global.
+//
+// O estado de cada bloco está em dois bitsets atómicos: reservado (pedido a
+// um peer e ainda sem resposta) e concluído. Reservar um bloco é um
+// compareAndSet sobre a palavra do bitset, e a procura do próximo bloco livre
+// começa num índice mínimo (hint) que só recua quando um bloco é devolvido.
+// O hint leva um contador de devoluções nos 32 bits de cima, para que uma
+// procura que não viu uma devolução não o consiga avançar.
+//
+// A quantidade de blocos que cada peer pode reservar é proporcional ao seu
+// débito medido. No fim do download um peer lento deixa de reservar blocos
+// se os outros os conseguirem transferir todos antes de ele acabar um só.
+//
+// Quando já não há blocos livres (fase final), um peer sem pedidos em curso e
+// pelo menos tão rápido como a média pode pedir de novo um bloco reservado
+// por outro; cada bloco tem no máximo um pedido repetido e fica concluído
+// pela primeira resposta que chegar.
+//
+// Um bloco que um peer enviou corrompido não lhe volta a ser pedido, a menos
+// que todos os peers ativos o tenham enviado corrompido: nesse caso volta a
+// ser pedido, e cada nova falha conta para a exclusão do peer do download.
+public class BlockScheduler {
+
+    private final long fileSize;
+    private final int blockSize;
+    private final int totalBlocks;
+    private final AtomicLongArray claimed;
+    private final AtomicLongArray completed;
+    // Blocos já pedidos uma segunda vez na fase final
+    private final AtomicLongArray duplicated;
+    private final AtomicInteger claimedCount = new AtomicInteger();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    // Nenhum bloco abaixo deste índice (32 bits de baixo) está livre
+    private final AtomicLong hint = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean failed = false;
+    // Blocos que cada peer enviou corrompidos e que devem ser pedidos a outro
+    private final Map<String, Set<Integer>> excludedByPeer = new ConcurrentHashMap<>();
+    // Peers que ainda pedem blocos neste download
+    private final Set<String> activePeers = ConcurrentHashMap.newKeySet();
+    // Débito medido de cada peer ativo, em bytes por nanossegundo
+    private final Map<String, Double> throughputs = new ConcurrentHashMap<>();
+
+    public BlockScheduler(long fileSize, int blockSize) {
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.totalBlocks = (int) ((fileSize + blockSize - 1) / blockSize);
+        int words = (totalBlocks + 63) / 64;
+        this.claimed = new AtomicLongArray(words);
+        this.completed = new AtomicLongArray(words);
+        this.duplicated = new AtomicLongArray(words);
+        if (totalBlocks == 0) {
+            done.countDown();
+        }
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    public int getCompletedBlocks() {
+        return completedCount.get();
+    }
+
+    public long blockOffset(int index) {
+        return (long) index * blockSize;
+    }
+
+    public int blockLength(int index) {
+        return (int) Math.min(blockSize, fileSize - blockOffset(index));
+    }
+
+    // Quantos blocos o peer deve pedir agora, no máximo wanted. Devolve 0 se
+    // for melhor deixar os blocos que faltam para peers mais rápidos.
+    public int allowedBlocks(String peerKey, int wanted) {
+        Double mine = throughputs.get(peerKey);
+        if (mine == null || mine <= 0 || throughputs.size() < 2) {
+            return wanted;  // Ainda sem medições para comparar
+        }
+        double total = totalThroughput();
+        int free = totalBlocks - completedCount.get() - claimedCount.get();
+        if (free <= 0) {
+            return wanted;
+        }
+        // Tempo que os outros peers levam, juntos, a transferir os blocos livres, e tempo que este leva com um bloco
+        double others = total - mine;
+        if (others > 0 && blockSize / mine > (double) free * blockSize / others) {
+            return 0;
+        }
+        int share = (int) Math.ceil(free * mine / total);
+        return Math.max(1, Math.min(wanted, share));
+    }
+
+    private double totalThroughput() {
+        double total = 0;
+        for (double throughput : throughputs.values()) {
+            total += throughput;
+        }
+        return total;
+    }
+
+    public void recordThroughput(String peerKey, double bytesPerNano) {
+        throughputs.put(peerKey, bytesPerNano);
+    }
+
+    public void addPeer(String peerKey) {
+        activePeers.add(peerKey);
+    }
+
+    // O peer deixou o download: o seu débito deixa de contar na distribuição
+    public void forgetPeer(String peerKey) {
+        throughputs.remove(peerKey);
+        activePeers.remove(peerKey);
+    }
+
+    // O peer não deve receber o bloco se o enviou corrompido e houver outro peer
+    // ativo que ainda o possa enviar
+    private boolean isExcluded(String peerKey, int index) {
+        if (!excludedByPeer.getOrDefault(peerKey, Collections.emptySet()).contains(index)) {
+            return false;
+        }
+        for (String peer : activePeers) {
+            if (!excludedByPeer.getOrDefault(peer, Collections.emptySet()).contains(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reserva até maxBlocks blocos livres e contíguos para o peer, evitando os que ele
+    // enviou corrompidos. Devolve {primeiro, quantidade}, ou null se não houver blocos
+    // livres para este peer.
+    public int[] claim(String peerKey, int maxBlocks) {
+        long startHint = hint.get();
+        int start = (int) startHint;
+        boolean allTakenBefore = true;
+        for (int word = start >>> 6; word < claimed.length(); word++) {
+            long free = ~(claimed.get(word) | completed.get(word));
+            if (word == start >>> 6) {
+                free &= -1L << (start & 63);
+            }
+            while (free != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(free);
+                free &= free - 1;
+                if (index >= totalBlocks) {
+                    break;
+                }
+                if (allTakenBefore) {
+                    // Até aqui não há blocos livres: o hint pode avançar
+                    hint.compareAndSet(startHint, (startHint & ~0xFFFFFFFFL) | index);
+                    allTakenBefore = false;
+                }
+                if (isExcluded(peerKey, index) || !tryClaim(index)) {
+                    continue;
+                }
+                int count = 1;
+                while (count < maxBlocks && index + count < totalBlocks
+                        && !isExcluded(peerKey, index + count) && tryClaim(index + count)) {
+                    count++;
+                }
+                return new int[]{index, count};
+            }
+        }
+        if (allTakenBefore) {
+            hint.compareAndSet(startHint, (startHint & ~0xFFFFFFFFL) | totalBlocks);
+        }
+        return null;
+    }
+
+    private boolean tryClaim(int index) {
+        if (!setBit(claimed, index, completed)) {
+            return false;
+        }
+        claimedCount.incrementAndGet();
+        // O bloco pode ter sido concluído entre a verificação e a reserva
+        if (isCompleted(index)) {
+            clearClaim(index);
+            return false;
+        }
+        return true;
+    }
+
+    private void clearClaim(int index) {
+        if (clearBit(claimed, index)) {
+            claimedCount.decrementAndGet();
+        }
+    }
+
+    // Liga o bit do índice se ainda estiver desligado, e se também estiver desligado em unless
+    private static boolean setBit(AtomicLongArray bits, int index, AtomicLongArray unless) {
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        while (true) {
+            long current = bits.get(word);
+            if ((current & bit) != 0 || (unless != null && (unless.get(word) & bit) != 0)) {
+                return false;
+            }
+            if (bits.compareAndSet(word, current, current | bit)) {
+                return true;
+            }
+        }
+    }
+
+    // Desliga o bit do índice; devolve false se já estava desligado
+    private static boolean clearBit(AtomicLongArray bits, int index) {
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        while (true) {
+            long current = bits.get(word);
+            if ((current & bit) == 0) {
+                return false;
+            }
+            if (bits.compareAndSet(word, current, current & ~bit)) {
+                return true;
+            }
+        }
+    }
+
+    // Fase final: reserva até maxBlocks blocos contíguos que já estão pedidos a outro
+    // peer e ainda não foram pedidos segunda vez. own indica os blocos que este peer
+    // já tem pedidos. Devolve {primeiro, quantidade}, ou null se não houver nenhum.
+    public int[] claimDuplicate(String peerKey, int maxBlocks, IntPredicate own) {
+        // Só repetem pedidos os peers pelo menos tão rápidos como a média
+        Double mine = throughputs.get(peerKey);
+        if (mine != null && mine * throughputs.size() < totalThroughput()) {
+            return null;
+        }
+        // O hint não serve aqui: abaixo dele pode haver blocos reservados por concluir
+        for (int word = 0; word < claimed.length(); word++) {
+            long candidates = claimed.get(word) & ~completed.get(word) & ~duplicated.get(word);
+            while (candidates != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+                if (index >= totalBlocks || own.test(index) || isExcluded(peerKey, index)
+                        || !setBit(duplicated, index, completed)) {
+                    continue;
+                }
+                int count = 1;
+                while (count < maxBlocks && index + count < totalBlocks && isClaimed(index + count)
+                        && !own.test(index + count) && !isExcluded(peerKey, index + count)
+                        && setBit(duplicated, index + count, completed)) {
+                    count++;
+                }
+                return new int[]{index, count};
+            }
+        }
+        return null;
+    }
+
+    // Devolve blocos reservados que não foram recebidos, para serem pedidos de novo
+    public void release(int first, int count) {
+        for (int index = first; index < first + count; index++) {
+            clearClaim(index);
+        }
+        hint.updateAndGet(h -> ((h >>> 32) + 1) << 32 | Math.min((int) h, first));
+    }
+
+    // Desiste dos pedidos repetidos destes blocos; continuam reservados pelo peer original
+    public void releaseDuplicate(int first, int count) {
+        for (int index = first; index < first + count; index++) {
+            clearBit(duplicated, index);
+        }
+    }
+
+    // Devolve um bloco que o peer enviou corrompido; este peer não o volta a receber
+    public void releaseCorrupt(String peerKey, int index, boolean duplicate) {
+        excludedByPeer.computeIfAbsent(peerKey, k -> ConcurrentHashMap.newKeySet()).add(index);
+        if (duplicate) {
+            releaseDuplicate(index, 1);
+        } else {
+            release(index, 1);
+        }
+    }
+
+    // Marca um bloco como recebido e escrito. Devolve false se outro pedido já o
+    // tinha concluído (na fase final o mesmo bloco pode chegar duas vezes).
+    public boolean complete(int index) {
+        if (!setBit(completed, index, null)) {
+            return false;
+        }
+        clearClaim(index);
+        if (completedCount.incrementAndGet() == totalBlocks) {
+            done.countDown();
+        }
+        return true;
+    }
+
+    // Marca como concluídos os blocos de um download retomado, antes de haver peers a pedir blocos.
+    // Devolve quantos blocos foram marcados.
+    public int restore(long[] completedBlocks) {
+        int restored = 0;
+        for (int word = 0; word < completedBlocks.length && word < completed.length(); word++) {
+            long bits = completedBlocks[word];
+            while (bits != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (index < totalBlocks && complete(index)) {
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    // Cópia do bitmap dos blocos concluídos, para guardar o progresso em disco
+    public long[] completedBitmap() {
+        long[] bitmap = new long[completed.length()];
+        for (int word = 0; word < bitmap.length; word++) {
+            bitmap[word] = completed.get(word);
+        }
+        return bitmap;
+    }
+
+    public boolean isCompleted(int index) {
+        return (completed.get(index >>> 6) & (1L << (index & 63))) != 0;
+    }
+
+    private boolean isClaimed(int index) {
+        return (claimed.get(index >>> 6) & (1L << (index & 63))) != 0;
+    }
+
+    // Termina o download sem todos os blocos (já não há peers a quem os pedir)
+    public void fail() {
+        failed = true;
+        done.countDown();
+    }
+
+    public boolean isComplete() {
+        return done.getCount() == 0 && !failed;
+    }
+
+    public boolean isFinished() {
+        return done.getCount() == 0;
+    }
+
+    // Espera até todos os blocos estarem concluídos; devolve false se o download falhou
+    public boolean awaitCompletion() throws InterruptedException {
+        done.await();
+        return !failed;
+    }
+
+    // Índices dos blocos que ainda não foram reservados nem concluídos
+    public List<Integer> pendingBlocks() {
+        List<Integer> pending = new ArrayList<>();
+        for (int index = 0; index < totalBlocks; index++) {
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+            if (((claimed.get(word) | completed.get(word)) & bit) == 0) {
+                pending.add(index);
+            }
+        }
+        return pending;
+    }
+}
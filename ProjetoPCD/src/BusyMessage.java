@@ -0,0 +1,9 @@
+
+import java.io.Serializable;
+
+// Resposta a um pedido de bloco quando o nó já tem demasiados uploads em
+// curso e em espera; o pedido deve ser repetido mais tarde
+public class BusyMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+}
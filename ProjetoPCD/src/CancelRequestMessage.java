@@ -0,0 +1,10 @@
+
+import java.io.Serializable;
+
+// Pede ao peer que não responda a um pedido de bloco anterior, identificado
+// pelo id da trama, porque o bloco já chegou por outro peer ou o prazo passou.
+// Não tem resposta; se o bloco já estiver a ser enviado chega na mesma.
+public class CancelRequestMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,38 @@
+
+import java.io.Serializable;
+
+// Resposta a um pedido de bloco com os dados comprimidos (Deflate). Só é
+// enviada a peers que aceitaram a compressão no handshake; quem a recebe
+// obtém uma FileBlockAnswerMessage normal, já descomprimida pelo MessageCodec.
+public class CompressedBlockAnswer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String fileName;
+    private final long offset;
+    private final int length;             // Tamanho dos dados depois de descomprimidos
+    private final byte[] compressedData;
+
+    public CompressedBlockAnswer(String fileName, long offset, int length, byte[] compressedData) {
+        this.fileName = fileName;
+        this.offset = offset;
+        this.length = length;
+        this.compressedData = compressedData;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getCompressedData() {
+        return compressedData;
+    }
+}
@@ -0,0 +1,153 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Progresso de um download guardado ao lado do ficheiro .part: hash e tamanho
+// do conteúdo, tamanho dos blocos e o bitmap dos blocos já escritos no .part.
+// Permite retomar o download depois de um reinício, ou quando o mesmo
+// conteúdo volta a ser pedido, sem transferir de novo os blocos que já estão
+// em disco.
+public class DownloadProgress {
+
+    public static final String EXTENSION = DownloadTaskManager.PART_EXTENSION + ".meta";
+    private static final int FORMAT_VERSION = 1;
+
+    private final File metaFile;
+    private final BigInteger fileHash;
+    private final long fileSize;
+    private final int blockSize;
+    private final long[] completedBlocks;
+
+    public DownloadProgress(File partFile, BigInteger fileHash, long fileSize, int blockSize) {
+        this(new File(partFile.getPath() + ".meta"), fileHash, fileSize, blockSize, new long[0]);
+    }
+
+    private DownloadProgress(File metaFile, BigInteger fileHash, long fileSize, int blockSize, long[] completedBlocks) {
+        this.metaFile = metaFile;
+        this.fileHash = fileHash;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.completedBlocks = completedBlocks;
+    }
+
+    public File getPartFile() {
+        String path = metaFile.getPath();
+        return new File(path.substring(0, path.length() - ".meta".length()));
+    }
+
+    public BigInteger getFileHash() {
+        return fileHash;
+    }
+
+    // Bitmap dos blocos concluídos (bit i da palavra i / 64)
+    public long[] getCompletedBlocks() {
+        return completedBlocks;
+    }
+
+    public int getTotalBlocks() {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    public int countCompleted() {
+        int count = 0;
+        for (long word : completedBlocks) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    // Lê o progresso guardado; devolve null se não existir ou estiver inválido
+    public static DownloadProgress load(File metaFile) {
+        if (!metaFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(metaFile.toPath()))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            BigInteger fileHash = new BigInteger(in.readUTF(), 16);
+            long fileSize = in.readLong();
+            int blockSize = in.readInt();
+            int words = in.readInt();
+            // Ficheiro truncado ou corrompido: recomeça do zero em vez de alocar um tamanho arbitrário
+            if (fileSize < 0 || blockSize <= 0 || words != ((fileSize + blockSize - 1) / blockSize + 63) / 64) {
+                System.err.println("[ERRO] Progresso de download inválido em " + metaFile.getName() + ": tamanho do mapa de blocos não corresponde ao ficheiro");
+                return null;
+            }
+            long[] completedBlocks = new long[words];
+            for (int i = 0; i < completedBlocks.length; i++) {
+                completedBlocks[i] = in.readLong();
+            }
+            return new DownloadProgress(metaFile, fileHash, fileSize, blockSize, completedBlocks);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[ERRO] Progresso de download inválido em " + metaFile.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Downloads incompletos guardados na pasta, cujo ficheiro .part ainda existe
+    public static List<DownloadProgress> findAll(File workDir) {
+        List<DownloadProgress> found = new ArrayList<>();
+        File[] metaFiles = workDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (metaFiles == null) {
+            return found;
+        }
+        for (File metaFile : metaFiles) {
+            DownloadProgress progress = load(metaFile);
+            if (progress != null && progress.getPartFile().length() == progress.fileSize) {
+                found.add(progress);
+            }
+        }
+        return found;
+    }
+
+    // Download incompleto do mesmo conteúdo, com qualquer nome; null se não houver
+    public static DownloadProgress find(File workDir, BigInteger fileHash, long fileSize, int blockSize) {
+        for (DownloadProgress progress : findAll(workDir)) {
+            if (progress.fileHash.equals(fileHash) && progress.fileSize == fileSize && progress.blockSize == blockSize) {
+                return progress;
+            }
+        }
+        return null;
+    }
+
+    // Guarda o bitmap, escrevendo num ficheiro temporário que depois substitui o anterior.
+    // Os blocos marcados já têm de estar em disco (o chamador faz force ao .part antes).
+    public void save(long[] completedBlocks) throws IOException {
+        Path temp = metaFile.toPath().resolveSibling(metaFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(fileHash.toString(16));
+            out.writeLong(fileSize);
+            out.writeInt(blockSize);
+            out.writeInt(completedBlocks.length);
+            for (long word : completedBlocks) {
+                out.writeLong(word);
+            }
+        }
+        try {
+            Files.move(temp, metaFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(metaFile.toPath());
+    }
+
+    // Indica se um ficheiro da pasta guarda o progresso de um download e não deve ser partilhado
+    public static boolean isProgressFile(File file) {
+        String name = file.getName();
+        return name.endsWith(EXTENSION) || name.endsWith(EXTENSION + ".tmp");
+    }
+}
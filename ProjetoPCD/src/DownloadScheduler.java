@@ -0,0 +1,201 @@
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Downloads do nó: uma fila de ficheiros a transferir, com um número limitado
+// em simultâneo, e limites aos pedidos de blocos em curso por peer e no total.
+//
+// O mesmo conteúdo (hash, ou nome em nós antigos) só é transferido uma vez de
+// cada vez. Cada peer aceita um número fixo de pedidos em curso, repartido em
+// partes iguais pelos downloads que o estão a usar, para que vários ficheiros
+// pedidos ao mesmo peer dividam a sua largura de banda. A configuração é
+// feita por propriedades do sistema:
+//   isctorrent.maxDownloads   downloads em simultâneo (4)
+//   isctorrent.peerRequests   pedidos em curso por peer (64)
+//   isctorrent.totalRequests  pedidos em curso no total (256)
+public class DownloadScheduler {
+
+    public static final int MAX_DOWNLOADS = Integer.getInteger("isctorrent.maxDownloads", 4);
+    public static final int PEER_REQUESTS = Integer.getInteger("isctorrent.peerRequests", 64);
+    public static final int TOTAL_REQUESTS = Integer.getInteger("isctorrent.totalRequests", 256);
+
+    private final Node node;
+
+    // Protege a fila e os downloads ativos
+    private final Lock lock = new ReentrantLock();
+    private final Queue<Job> queue = new ArrayDeque<>();
+    // Conteúdos em fila ou a ser transferidos
+    private final Set<Object> jobs = new HashSet<>();
+    // Downloads a decorrer, pela ordem em que começaram
+    private final List<DownloadTaskManager> active = new ArrayList<>();
+    private int running = 0;
+
+    private final Map<String, PeerShare> peers = new ConcurrentHashMap<>();
+    private final Semaphore totalRequests = new Semaphore(TOTAL_REQUESTS, true);
+
+    public DownloadScheduler(Node node) {
+        this.node = node;
+    }
+
+    // Põe um download na fila. Devolve false se o mesmo conteúdo já estiver em fila ou a ser transferido.
+    public boolean submit(String fileName, long fileSize, List<FileSearchResult> sources) {
+        Job job = new Job(fileName, fileSize, sources);
+        lock.lock();
+        try {
+            if (!jobs.add(job.contentKey)) {
+                System.out.println("[INFO] " + fileName + " já está a ser transferido");
+                return false;
+            }
+            queue.add(job);
+            if (running >= MAX_DOWNLOADS) {
+                System.out.println("[INFO] Download de " + fileName + " em espera (" + running + " downloads em curso)");
+            }
+            startNext();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Inicia downloads da fila enquanto houver lugar (chamado com o cadeado)
+    private void startNext() {
+        while (running < MAX_DOWNLOADS && !queue.isEmpty()) {
+            Job job = queue.poll();
+            running++;
+            System.out.println("[INFO] Iniciando download de " + job.fileName);
+            DownloadTaskManager downloadManager = new DownloadTaskManager(node.getWorkDir(), node, () -> finished(job));
+            job.manager = downloadManager;
+            active.add(downloadManager);
+            node.getTaskExecutor().execute(() -> {
+                if (!downloadManager.startDownload(job.fileName, job.fileSize, job.sources)) {
+                    finished(job);
+                }
+            });
+        }
+    }
+
+    private void finished(Job job) {
+        lock.lock();
+        try {
+            jobs.remove(job.contentKey);
+            active.remove(job.manager);
+            running--;
+            startNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<DownloadTaskManager> getActiveDownloads() {
+        lock.lock();
+        try {
+            return new ArrayList<>(active);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunningDownloads() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedDownloads() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Um download começou a pedir blocos a este peer
+    public void register(String peerKey) {
+        peers.computeIfAbsent(peerKey, k -> new PeerShare()).users.incrementAndGet();
+    }
+
+    public void unregister(String peerKey) {
+        PeerShare peer = peers.get(peerKey);
+        if (peer != null) {
+            peer.users.decrementAndGet();
+        }
+    }
+
+    // Pedidos em curso que cada download pode ter neste peer
+    public int requestShare(String peerKey) {
+        PeerShare peer = peers.get(peerKey);
+        int users = peer == null ? 1 : Math.max(1, peer.users.get());
+        return Math.max(1, (PEER_REQUESTS + users - 1) / users);
+    }
+
+    // Reserva um pedido em curso no peer e no total. Com wait a false não espera:
+    // devolve false se algum dos limites estiver atingido ou houver outros à espera.
+    public boolean acquireRequest(String peerKey, boolean wait) throws InterruptedException {
+        Semaphore peerRequests = peers.computeIfAbsent(peerKey, k -> new PeerShare()).requests;
+        if (wait) {
+            totalRequests.acquire();
+        } else if (!totalRequests.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            if (wait) {
+                peerRequests.acquire();
+                acquired = true;
+            } else {
+                acquired = peerRequests.tryAcquire(0, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            if (!acquired) {
+                totalRequests.release();
+            }
+        }
+        return acquired;
+    }
+
+    public void releaseRequest(String peerKey) {
+        peers.get(peerKey).requests.release();
+        totalRequests.release();
+    }
+
+    // Pedidos em curso num peer, repartidos pelos downloads que o usam.
+    // Os semáforos são justos: quem espera há mais tempo é servido primeiro.
+    private static class PeerShare {
+
+        private final Semaphore requests = new Semaphore(PEER_REQUESTS, true);
+        private final AtomicInteger users = new AtomicInteger();
+    }
+
+    private static class Job {
+
+        private final String fileName;
+        private final long fileSize;
+        private final List<FileSearchResult> sources;
+        // O hash identifica o conteúdo; nós antigos só dão o nome
+        private final Object contentKey;
+        private DownloadTaskManager manager;
+
+        private Job(String fileName, long fileSize, List<FileSearchResult> sources) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.sources = sources;
+            FileSearchResult first = sources.isEmpty() ? null : sources.get(0);
+            this.contentKey = first != null && first.getHash() != null ? first.getHash() : fileName;
+        }
+    }
+}
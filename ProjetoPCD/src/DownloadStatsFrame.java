@@ -1,6 +1,9 @@
 
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.util.Map;
+import java.util.TreeMap;
 import javax.swing.*;
 
 public class DownloadStatsFrame {
@@ -12,6 +15,20 @@ public class DownloadStatsFrame {
     private long elapsedTime;
     private Map<String, Integer> peersBlockCounts;
 
+    // Janela em direto: labels atualizados pelo timer enquanto o download decorre
+    private JLabel statusLabel;
+    private JLabel fileLabel;
+    private JLabel sizeLabel;
+    private JLabel progressLabel;
+    private JLabel timeLabel;
+    private JLabel rateLabel;
+    private JLabel rttLabel;
+    private JPanel peersPanel;
+    private Timer timer;
+    // Bytes de cada peer na atualização anterior, para o débito deste download
+    private Map<String, Long> lastPeersBytes = Map.of();
+    private long lastRefreshNanos;
+
     public DownloadStatsFrame(String fileName, long fileSize, long elapsedTime, Map<String, Integer> peersBlockCounts) {
 
         this.fileName = fileName;
@@ -68,6 +85,128 @@ public class DownloadStatsFrame {
         frame.add(panel);
     }
 
+    // Janela que acompanha o download em curso, atualizada a cada segundo com o
+    // progresso e o débito de cada peer neste download, e o RTT dos blocos
+    // medido pelo nó em todos os downloads
+    public DownloadStatsFrame(DownloadTaskManager download, NodeMetrics metrics) {
+
+        frame = new JFrame("Download em curso");
+        frame.setSize(400, 340);
+        frame.setLocationRelativeTo(null);
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+        // Painel principal
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        statusLabel = new JLabel("A transferir...");
+        fileLabel = new JLabel();
+        sizeLabel = new JLabel();
+        progressLabel = new JLabel();
+        timeLabel = new JLabel();
+        rateLabel = new JLabel();
+        rttLabel = new JLabel();
+
+        panel.add(statusLabel);
+        panel.add(Box.createVerticalStrut(5));
+        panel.add(fileLabel);
+        panel.add(sizeLabel);
+        panel.add(progressLabel);
+        panel.add(timeLabel);
+        panel.add(rateLabel);
+        panel.add(rttLabel);
+        panel.add(Box.createVerticalStrut(10));
+
+        // Título para lista de peers
+        panel.add(new JLabel("Blocos por peer:"));
+        panel.add(Box.createVerticalStrut(5));
+
+        peersPanel = new JPanel();
+        peersPanel.setLayout(new GridLayout(0, 2, 5, 2));
+
+        JScrollPane scrollPane = new JScrollPane(peersPanel);
+        scrollPane.setPreferredSize(new Dimension(350, 150));
+        panel.add(scrollPane);
+
+        // Botão OK
+        JButton okButton = new JButton("OK");
+        okButton.addActionListener(e -> frame.dispose());
+
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(okButton);
+
+        panel.add(Box.createVerticalStrut(10));
+        panel.add(buttonPanel);
+
+        frame.add(panel);
+
+        // As estatísticas finais passam a ser mostradas nesta janela
+        download.watch();
+        timer = new Timer(1000, e -> refresh(download, metrics));
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+            }
+        });
+        refresh(download, metrics);
+        if (!download.isFinished()) {
+            timer.start();
+        }
+    }
+
+    private void refresh(DownloadTaskManager download, NodeMetrics metrics) {
+        fileName = download.getFileName();
+        fileSize = download.getFileSize();
+        elapsedTime = download.getElapsedMillis();
+        peersBlockCounts = new TreeMap<>(download.getPeersBlockCount());
+        int total = download.getTotalBlocks();
+        int completed = download.getCompletedBlocks();
+        // Débito de cada peer desde a atualização anterior, só com os bytes deste download
+        long now = System.nanoTime();
+        Map<String, Long> peersBytes = download.getPeersBytes();
+        double seconds = (now - lastRefreshNanos) / 1e9;
+        Map<String, Double> peerRates = new TreeMap<>();
+        if (lastRefreshNanos != 0 && seconds > 0) {
+            for (Map.Entry<String, Long> entry : peersBytes.entrySet()) {
+                peerRates.put(entry.getKey(), (entry.getValue() - lastPeersBytes.getOrDefault(entry.getKey(), 0L)) / seconds);
+            }
+        }
+        lastPeersBytes = peersBytes;
+        lastRefreshNanos = now;
+
+        fileLabel.setText("Ficheiro: " + fileName);
+        sizeLabel.setText("Tamanho: " + fileSize + " bytes");
+        progressLabel.setText("Progresso: " + completed + " de " + total + " blocos ("
+                + (total == 0 ? 0 : completed * 100L / total) + "%)");
+        timeLabel.setText("Tempo: " + (elapsedTime / 1000.0) + " segundos");
+
+        double rate = 0;
+        peersPanel.removeAll();
+        for (Map.Entry<String, Integer> entry : peersBlockCounts.entrySet()) {
+            double peerRate = peerRates.getOrDefault(entry.getKey(), 0.0);
+            rate += peerRate;
+            peersPanel.add(new JLabel(entry.getKey() + ":"));
+            peersPanel.add(new JLabel(entry.getValue() + " blocos, " + String.format("%.1f KB/s", peerRate / 1024)));
+        }
+        peersPanel.revalidate();
+        peersPanel.repaint();
+        rateLabel.setText("Débito: " + String.format("%.1f KB/s", rate / 1024));
+        Histogram.Snapshot rtt = metrics.getBlockRtt();
+        rttLabel.setText("RTT dos blocos (nó): " + String.format("p50 %.1f ms, p99 %.1f ms", rtt.getP50(), rtt.getP99()));
+
+        if (download.isFinished()) {
+            timer.stop();
+            boolean saved = download.isSaved();
+            frame.setTitle(saved ? "Download Concluído" : "Download Interrompido");
+            statusLabel.setText(saved ? "Download completo!" : "Download interrompido");
+            // Débito médio do download inteiro
+            rateLabel.setText("Débito médio: " + String.format("%.1f KB/s",
+                    elapsedTime == 0 ? 0 : fileSize * 1000.0 / elapsedTime / 1024));
+        }
+    }
+
     public void show() {
         frame.setVisible(true);
     }
@@ -1,236 +1,696 @@
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class DownloadTaskManager {
 
-    private static final int BLOCK_SIZE = 10240;
-    private List<FileBlockRequestMessage> pendingBlocks;
-    private Map<Integer, byte[]> downloadedBlocks;
+    public static final int BLOCK_SIZE = 10240;
+    // Extensão do ficheiro enquanto o download não termina
+    public static final String PART_EXTENSION = ".part";
+    // Carateres hexadecimais do hash no nome do .part
+    private static final int PART_HASH_PREFIX = 12;
+    // Memória máxima ocupada por blocos pedidos e ainda não escritos em disco
+    private static final int MAX_IN_FLIGHT_BYTES = 4 * 1024 * 1024;
+    // Blocos corrompidos que um peer pode enviar antes de deixar de ser usado
+    private static final int MAX_CORRUPT_BLOCKS_PER_PEER = 3;
+    // Espera antes de voltar a pedir blocos a um peer ocupado, duplicada a cada recusa
+    private static final long MIN_BUSY_BACKOFF_MS = 50;
+    private static final long MAX_BUSY_BACKOFF_MS = 2000;
+    // Espera de um peer sem blocos para pedir antes de voltar a procurar
+    private static final long SLOW_PEER_WAIT_MS = 20;
+    // Pedidos seguidos sem resposta dentro do prazo antes de um peer deixar de ser usado
+    private static final int MAX_TIMEOUTS_PER_PEER = 3;
+    // Prazo de cada parte do manifesto; um peer que não responde passa para o seguinte
+    private static final long MANIFEST_TIMEOUT_MS = 10_000;
+    // Intervalo mínimo entre gravações do progresso do download em disco
+    private static final long PROGRESS_SAVE_INTERVAL_MS = 1000;
+
+    // Estado dos blocos do download em curso
+    private volatile BlockScheduler scheduler;
+    private File partFile;
+    private FileChannel partChannel;
+    // Blocos já escritos no .part, guardados ao lado dele; null se o conteúdo não tiver hash (nós antigos)
+    private DownloadProgress progress;
+    private final AtomicLong lastProgressSave = new AtomicLong();
+    // Guarda o progresso se o processo terminar a meio do download
+    private Thread progressHook;
+    private final Semaphore inFlightBlocks = new Semaphore(MAX_IN_FLIGHT_BYTES / BLOCK_SIZE);
     private String fileName;
+    private BigInteger fileHash;
+    private volatile BlockManifest manifest;    // null se nenhum peer enviou o manifesto (nós antigos)
     private long fileSize;
     private String workDir;
-    private long startTime;
-    private Map<String, Integer> peersBlockCount;
+    private volatile long startTime;
+    // Fim do download, com ou sem sucesso (0 enquanto decorre)
+    private volatile long finishedAt = 0;
+    private volatile boolean saved = false;
+    // Há uma janela a mostrar o download em direto, que substitui as estatísticas finais
+    private volatile boolean watched = false;
+    private final Map<String, LongAdder> peersBlockCount = new ConcurrentHashMap<>();
+    // Bytes recebidos de cada peer neste download (as métricas do nó somam todos os downloads)
+    private final Map<String, LongAdder> peersBytes = new ConcurrentHashMap<>();
     private boolean downloading = false;
 
-    // Cadeado e variáveis condicionais
+    // Protege o início e o fim do download; os blocos são distribuídos pelo BlockScheduler
     private final Lock lock = new ReentrantLock();
-    private final Condition downloadCompleteCondition = lock.newCondition();
     private int totalBlocks = 0;
-    private int completedBlocks = 0;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
 
     private Node node;
+    // Limites de pedidos por peer partilhados com os outros downloads do nó
+    private final DownloadScheduler downloads;
+    // Avisado quando o download termina, com ou sem sucesso
+    private final Runnable onFinished;
 
     public DownloadTaskManager(String workDir, Node node) {
-        this.pendingBlocks = Collections.synchronizedList(new ArrayList<>());
-        this.downloadedBlocks = new ConcurrentHashMap<>();
-        this.peersBlockCount = new ConcurrentHashMap<>();
+        this(workDir, node, null);
+    }
+
+    public DownloadTaskManager(String workDir, Node node, Runnable onFinished) {
         this.workDir = workDir;
         this.node = node;
+        this.downloads = node.getDownloadScheduler();
+        this.onFinished = onFinished;
     }
 
-    public void startDownload(String fileName, long fileSize, List<FileSearchResult> sources) {
+    // Devolve false se o download não chegou a começar. Só a passagem ao estado
+    // "a transferir" é feita com o lock; o manifesto é pedido já fora dele.
+    public boolean startDownload(String fileName, long fileSize, List<FileSearchResult> sources) {
+        DownloadProgress previous;
         lock.lock();
         try {
             if (downloading) {
                 System.err.println("[ERRO] Já existe um download a decorrer");
-                return;
+                return false;
             }
 
             this.fileName = fileName;
+            this.fileHash = sources.isEmpty() ? null : sources.get(0).getHash();
             this.fileSize = fileSize;
             this.startTime = System.currentTimeMillis();
+
+            // Retoma um download anterior do mesmo conteúdo, se o seu .part ainda existir
+            previous = fileHash == null ? null : DownloadProgress.find(new File(workDir), fileHash, fileSize, BLOCK_SIZE);
+            this.partFile = previous != null ? previous.getPartFile() : new File(workDir, partFileName(fileName, fileHash));
+            this.progress = previous != null || fileHash == null ? previous : new DownloadProgress(partFile, fileHash, fileSize, BLOCK_SIZE);
+            this.lastProgressSave.set(startTime);
+
+            // Reserva o ficheiro .part com o tamanho final, onde cada bloco é escrito na sua posição
+            try {
+                openPartFile();
+            } catch (IOException e) {
+                System.err.println("[ERRO] Não foi possível criar o ficheiro " + partFile.getName() + ": " + e.getMessage());
+                return false;
+            }
             this.downloading = true;
+            if (progress != null) {
+                progressHook = new Thread(this::saveProgress);
+                Runtime.getRuntime().addShutdownHook(progressHook);
+            }
 
             // Inicializa a contagem de blocos por peer
             for (FileSearchResult source : sources) {
                 String peerKey = source.getHostName() + ":" + source.getOriginPort();
-                peersBlockCount.put(peerKey, 0);
+                peersBlockCount.put(peerKey, new LongAdder());
             }
 
             // Cria a lista dos blocos
             createBlockRequests(fileName, fileSize);
 
             // Define o total de blocos a serem baixados
-            totalBlocks = pendingBlocks.size();
-            completedBlocks = 0;
+            totalBlocks = scheduler.getTotalBlocks();
 
-            // Inicia as threads para download de cada peer
-            for (FileSearchResult source : sources) {
-                new Thread(() -> downloadFromPeer(source)).start();
+            // Os blocos que já estão no .part não são pedidos de novo
+            if (previous != null) {
+                int restored = scheduler.restore(previous.getCompletedBlocks());
+                System.out.println("[INFO] A retomar o download de " + fileName + ": " + restored + " de " + totalBlocks + " blocos já transferidos");
             }
-
-            // Cria thread para escrever o ficheiro quando completo
-            new Thread(this::waitAndWrite).start();
         } finally {
             lock.unlock();
         }
+
+        // Obtém primeiro os hashes dos blocos, para verificar cada bloco quando chega
+        manifest = fetchManifest(sources);
+        if (manifest == null) {
+            System.err.println("[INFO] Nenhum peer enviou o manifesto de " + fileName + ", os blocos não serão verificados");
+        }
+
+        // Inicia uma tarefa de download por peer no executor do nó
+        activeWorkers.set(sources.size());
+        if (sources.isEmpty()) {
+            scheduler.fail();
+        }
+        for (FileSearchResult source : sources) {
+            node.getTaskExecutor().execute(() -> downloadFromPeer(source));
+        }
+
+        // Tarefa que escreve o ficheiro quando completo
+        node.getTaskExecutor().execute(this::waitAndWrite);
+        return true;
     }
 
     private void waitAndWrite() {
+        // Aguarda até que todos os blocos sejam transferidos
+        boolean complete;
+        try {
+            complete = scheduler.awaitCompletion();
+        } catch (InterruptedException e) {
+            System.err.println("[ERRO] Thread de escrita interrompida: " + e.getMessage());
+            return;
+        }
+
+        // A gravação e a verificação do hash correm sem o lock; só o fim do download o usa
+        if (!complete) {
+            System.err.println("[ERRO] Download de " + fileName + " interrompido: nenhum peer enviou os blocos em falta");
+            // O ficheiro .part fica em disco com os blocos já recebidos, para ser retomado
+            saveProgress();
+            try {
+                partChannel.close();
+            } catch (IOException e) {
+                // Ignora, o download já terminou
+            }
+        } else {
+            long elapsed = System.currentTimeMillis() - startTime;
+            saved = writeFileToDisk();
+            if (saved) {
+                showDownloadStatistics(elapsed);
+            }
+        }
+
         lock.lock();
         try {
-            // Aguarda até que todos os blocos sejam transferidos
-            while (completedBlocks < totalBlocks) {
-                try {
-                    downloadCompleteCondition.await();
-                } catch (InterruptedException e) {
-                    System.err.println("[ERRO] Thread de escrita interrompida: " + e.getMessage());
-                    return;
-                }
+            finishDownload();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finishDownload() {
+        if (progressHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(progressHook);
+            } catch (IllegalStateException e) {
+                // O processo já está a terminar
             }
+            progressHook = null;
+        }
+        downloading = false;
+        finishedAt = System.currentTimeMillis();
+        if (onFinished != null) {
+            node.getTaskExecutor().execute(onFinished);
+        }
+    }
 
-            long elapsed = System.currentTimeMillis() - startTime;
+    private void openPartFile() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            raf.setLength(fileSize);
+        }
+        partChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+    }
 
-            writeFileToDisk();
-            showDownloadStatistics(elapsed);
+    // Guarda o progresso no máximo uma vez por PROGRESS_SAVE_INTERVAL_MS
+    private void saveProgressIfDue() {
+        long last = lastProgressSave.get();
+        long now = System.currentTimeMillis();
+        if (progress != null && now - last >= PROGRESS_SAVE_INTERVAL_MS && lastProgressSave.compareAndSet(last, now)) {
+            saveProgress();
+        }
+    }
+
+    private void saveProgress() {
+        if (progress == null) {
+            return;
+        }
+        synchronized (progress) {
+            try {
+                // Os blocos do bitmap já foram escritos; o force garante que estão em disco antes dele
+                long[] bitmap = scheduler.completedBitmap();
+                partChannel.force(false);
+                progress.save(bitmap);
+            } catch (IOException e) {
+                if (partChannel.isOpen()) {
+                    System.err.println("[ERRO] Não foi possível guardar o progresso de " + fileName + ": " + e.getMessage());
+                }
+            }
+        }
+    }
 
-            downloading = false;
+    // Nome do ficheiro parcial: com hash, leva o início do hash, para que dois conteúdos
+    // com o mesmo nome descarregados ao mesmo tempo não escrevam no mesmo .part e .meta
+    private static String partFileName(String fileName, BigInteger fileHash) {
+        if (fileHash == null) {
+            return fileName + PART_EXTENSION;
+        }
+        return fileName + "." + String.format("%064x", fileHash).substring(0, PART_HASH_PREFIX) + PART_EXTENSION;
+    }
 
-        } finally {
-            lock.unlock();
+    // Escreve um bloco na sua posição do ficheiro .part (escritas posicionais podem ser concorrentes)
+    private void writeBlock(long offset, byte[] data, int start, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, start, length);
+        while (buffer.hasRemaining()) {
+            partChannel.write(buffer, offset + buffer.position() - start);
         }
     }
 
-    private void writeFileToDisk() {
+    // Os blocos já estão em disco: fecha o ficheiro .part e dá-lhe o nome final
+    private boolean writeFileToDisk() {
         File file = new File(workDir, fileName);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            // Escreve os blocos pela ordem correta
-            for (int i = 0; i < totalBlocks; i++) {
-                byte[] data = downloadedBlocks.get(i);
-                if (data != null) {
-                    fos.write(data);
+        try {
+            partChannel.force(false);
+            partChannel.close();
+
+            // Confirma o hash do ficheiro completo (protege também contra um manifesto falso)
+            if (fileHash != null && !fileHash.equals(FileHasher.computeHash(partFile.toPath()))) {
+                System.err.println("[ERRO] O hash de " + fileName + " não corresponde ao esperado, ficheiro descartado");
+                Files.deleteIfExists(partFile.toPath());
+                if (progress != null) {
+                    progress.delete();
                 }
+                return false;
+            }
+            try {
+                Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (progress != null) {
+                progress.delete();
             }
             System.out.println("[INFO] Ficheiro guardado em : " + file.getAbsolutePath());
-            node.refreshFiles();
+            // Só o novo ficheiro entra no índice; o resto da partilha não é relido
+            if (fileHash != null) {
+                node.updateFile(file, fileHash);
+            } else {
+                node.updateFile(file);
+            }
+            return true;
         } catch (IOException e) {
             System.err.println("[ERRO] Falha ao guardar o ficheiro: " + e.getMessage());
+            return false;
         }
     }
 
     private void showDownloadStatistics(long elapsed) {
+        if (watched) {
+            return;
+        }
         // Apenas cria e chama o frame (formatação tratada no DownloadStatsFrame)
         javax.swing.SwingUtilities.invokeLater(() -> {
-            DownloadStatsFrame statsFrame = new DownloadStatsFrame(fileName, fileSize, elapsed, peersBlockCount);
+            DownloadStatsFrame statsFrame = new DownloadStatsFrame(fileName, fileSize, elapsed, getPeersBlockCount());
             statsFrame.show();
         });
     }
 
-    private void downloadFromPeer(FileSearchResult source) {
-        String peerKey = source.getHostName() + ":" + source.getOriginPort();
+    // Contagem de blocos recebidos de cada peer
+    public Map<String, Integer> getPeersBlockCount() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : peersBlockCount.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().intValue());
+        }
+        return counts;
+    }
 
-        try {
-            while (true) {
-                // Pega no proximo bloco para download com lock
-                FileBlockRequestMessage block;
+    // Bytes recebidos de cada peer neste download
+    public Map<String, Long> getPeersBytes() {
+        Map<String, Long> bytes = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : peersBytes.entrySet()) {
+            bytes.put(entry.getKey(), entry.getValue().sum());
+        }
+        return bytes;
+    }
 
-                lock.lock();
-                try {
-                    if (pendingBlocks.isEmpty()) {
-                        break; // Nao ha mais blocos
+    // Pede o manifesto aos peers, por partes, até um deles o enviar completo
+    private BlockManifest fetchManifest(List<FileSearchResult> sources) {
+        if (fileHash == null) {
+            return null;
+        }
+        for (FileSearchResult source : sources) {
+            try {
+                PeerConnection connection = node.getConnectionPool().getConnection(source.getHostName(), source.getOriginPort());
+                byte[] hashes = new byte[totalBlocks * BlockManifest.HASH_SIZE];
+                int received = 0;
+                while (received < totalBlocks) {
+                    Object response = connection.request(new BlockManifestRequest(fileHash, received, totalBlocks - received), MANIFEST_TIMEOUT_MS);
+                    if (!(response instanceof BlockManifest part) || part.getBlockSize() != BLOCK_SIZE
+                            || part.getFirstBlock() != received || part.getBlockCount() == 0) {
+                        break;
                     }
-                    block = pendingBlocks.remove(0);
-                } finally {
-                    lock.unlock();
+                    int count = Math.min(part.getBlockCount(), totalBlocks - received);
+                    System.arraycopy(part.getBlockHashes(), 0, hashes, received * BlockManifest.HASH_SIZE, count * BlockManifest.HASH_SIZE);
+                    received += count;
                 }
+                if (received == totalBlocks) {
+                    return new BlockManifest(fileHash, BLOCK_SIZE, 0, hashes);
+                }
+            } catch (IOException e) {
+                System.err.println("[ERRO] Falha ao obter manifesto de " + source.getHostName() + ":" + source.getOriginPort() + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
 
-                try {
-                    // Pede o bloco ao peer
-                    byte[] data = requestBlockFromPeer(source, block);
-
-                    // Armazena o bloco e atualiza contadores
-                    lock.lock();
-                    try {
-                        int blockIndex = (int) (block.getOffset() / BLOCK_SIZE);
-                        downloadedBlocks.put(blockIndex, data);
+    // Descarrega blocos de um peer mantendo vários pedidos em curso na mesma ligação.
+    // Cada pedido cobre vários blocos contíguos; o TransferWindow do peer decide
+    // quantos blocos vão em cada pedido, quantos pedidos ficam em curso e o prazo
+    // de cada um, e o BlockScheduler limita a parte de cada peer ao seu débito.
+    // Na fase final um peer parado repete pedidos que estão com outros peers; a
+    // primeira resposta conclui os blocos e o pedido que perdeu é cancelado.
+    private void downloadFromPeer(FileSearchResult source) {
+        String peerKey = source.getHostName() + ":" + source.getOriginPort();
+        MessageDigest digest = BlockManifest.newDigest();
+        TransferWindow window = new TransferWindow(BLOCK_SIZE);
+        LongAdder blockCount = peersBlockCount.computeIfAbsent(peerKey, k -> new LongAdder());
+        // Pedidos enviados e ainda não tratados, pelo primeiro bloco
+        Map<Integer, PendingRequest> inFlight = new HashMap<>();
+        // Blocos dos pedidos em curso, para este peer não repetir os seus próprios pedidos
+        BitSet ownBlocks = new BitSet();
+        // Pedidos cuja resposta (ou erro) já chegou, pela ordem de chegada
+        BlockingQueue<PendingRequest> answered = new LinkedBlockingQueue<>();
+        int corruptBlocks = 0;
+        int timeouts = 0;
+        long busyBackoffMs = 0;
+        long resumeAt = 0;
+        downloads.register(peerKey);
+        scheduler.addPeer(peerKey);
 
-                        // Atualiza a contagem deste peer
-                        peersBlockCount.put(peerKey, peersBlockCount.get(peerKey) + 1);
+        try {
+            while (!scheduler.isFinished()) {
+                // Enche a janela, a menos que o peer tenha pedido para esperar. A janela
+                // não passa da parte deste download nos pedidos que o peer aceita.
+                while (inFlight.size() < Math.min(window.size(), downloads.requestShare(peerKey))
+                        && System.currentTimeMillis() >= resumeAt) {
+                    int chunkBlocks = scheduler.allowedBlocks(peerKey, window.chunkBlocks());
+                    if (chunkBlocks == 0) {
+                        break;
+                    }
+                    // Pedidos em curso no peer e no nó, partilhados com os outros downloads
+                    if (!downloads.acquireRequest(peerKey, inFlight.isEmpty())) {
+                        break;
+                    }
+                    // Limita a memória ocupada por blocos pedidos e ainda não escritos.
+                    // Com pedidos em curso não bloqueia: as respostas libertam espaço.
+                    if (!inFlightBlocks.tryAcquire(chunkBlocks)) {
+                        if (!inFlight.isEmpty()) {
+                            downloads.releaseRequest(peerKey);
+                            break;
+                        }
+                        try {
+                            inFlightBlocks.acquire(chunkBlocks);
+                        } catch (InterruptedException e) {
+                            downloads.releaseRequest(peerKey);
+                            throw e;
+                        }
+                    }
+                    // Os blocos que este peer enviou corrompidos só lhe voltam a ser pedidos se
+                    // nenhum outro peer ativo os puder enviar; cada nova falha conta para a exclusão
+                    boolean duplicate = false;
+                    int[] claim = scheduler.claim(peerKey, chunkBlocks);
+                    if (claim == null && inFlight.isEmpty()) {
+                        // Fase final: já não há blocos livres e este peer está parado
+                        claim = scheduler.claimDuplicate(peerKey, chunkBlocks, ownBlocks::get);
+                        duplicate = true;
+                    }
+                    if (claim == null) {
+                        inFlightBlocks.release(chunkBlocks);
+                        downloads.releaseRequest(peerKey);
+                        break;
+                    }
+                    inFlightBlocks.release(chunkBlocks - claim[1]);
+                    PendingRequest pending = new PendingRequest(peerKey, claim[0], claim[1], duplicate, newRequest(claim[0], claim[1]));
+                    inFlight.put(pending.firstBlock, pending);
+                    ownBlocks.set(pending.firstBlock, pending.firstBlock + pending.blockCount);
+                    // Limite de download: o pedido só sai quando a resposta couber no débito permitido
+                    node.getBandwidthLimiter().acquireDownload(peerKey, pending.request.getLength());
+                    // O RTT conta a partir do envio, sem a espera imposta pelo limite
+                    pending.sentAt = System.nanoTime();
+                    sendBlockRequest(source, pending, answered, window.requestTimeoutMillis(bytesInFlight(inFlight)));
+                }
 
-                        // Marca um bloco como concluído
-                        completedBlocks++;
+                if (inFlight.isEmpty()) {
+                    // Os blocos que faltam estão com outros peers (ou ficaram para peers mais
+                    // rápidos), mas podem ser devolvidos se esses pedidos falharem
+                    Thread.sleep(Math.max(resumeAt - System.currentTimeMillis(), SLOW_PEER_WAIT_MS));
+                    continue;
+                }
 
-                        // Se todos os blocos tiverem sido transferidos, sinaliza a condição
-                        if (completedBlocks >= totalBlocks) {
-                            downloadCompleteCondition.signal();
+                PendingRequest pending = answered.poll(SLOW_PEER_WAIT_MS, TimeUnit.MILLISECONDS);
+                if (pending == null) {
+                    // Na fase final outro peer pode ter entregado os blocos que este ainda espera
+                    cancelCompleted(inFlight, ownBlocks);
+                    continue;
+                }
+                if (inFlight.get(pending.firstBlock) != pending) {
+                    continue;  // Pedido cancelado
+                }
+                forget(pending, inFlight, ownBlocks);
+                try {
+                    if (pending.isTimedOut()) {
+                        // O peer pode estar parado: os blocos passam para outros peers
+                        releaseUnfinished(pending);
+                        window.onTimeout();
+                        if (++timeouts >= MAX_TIMEOUTS_PER_PEER) {
+                            System.err.println("[ERRO] Peer " + peerKey + " sem resposta, excluído deste download");
+                            break;
                         }
-                    } finally {
-                        lock.unlock();
+                        continue;
+                    }
+                    byte[] data = pending.getData();
+                    if (data == null) {
+                        // Peer com demasiados uploads: os blocos voltam a ficar livres e este peer espera
+                        releaseUnfinished(pending);
+                        busyBackoffMs = Math.min(Math.max(busyBackoffMs * 2, MIN_BUSY_BACKOFF_MS), MAX_BUSY_BACKOFF_MS);
+                        resumeAt = System.currentTimeMillis() + busyBackoffMs;
+                        continue;
                     }
+                    busyBackoffMs = 0;
+                    timeouts = 0;
+                    if (data.length == 0) {
+                        throw new IOException("Bloco incompleto (offset=" + pending.request.getOffset() + ", recebidos 0 bytes)");
+                    }
+                    long rtt = System.nanoTime() - pending.sentAt;
+                    window.onAnswer(rtt, data.length);
+                    node.getMetrics().recordBlockRtt(rtt);
+                    node.getMetrics().recordDownload(peerKey, data.length);
+                    peersBytes.computeIfAbsent(peerKey, k -> new LongAdder()).add(data.length);
+                    scheduler.recordThroughput(peerKey, window.throughput());
+
+                    // Cada bloco da resposta é verificado e escrito separadamente
+                    for (int index = pending.firstBlock; index < pending.firstBlock + pending.blockCount; index++) {
+                        if (scheduler.isCompleted(index)) {
+                            continue;  // Já chegou por outro peer
+                        }
+                        int start = (int) (scheduler.blockOffset(index) - pending.request.getOffset());
+                        int length = scheduler.blockLength(index);
+                        if (start + length > data.length) {
+                            // Resposta mais curta do que o pedido: o resto é pedido de novo
+                            releaseBlock(pending, index);
+                            continue;
+                        }
 
-                } catch (IOException | ClassNotFoundException e) {
-                    System.err.println("[ERRO] Falha ao transferir bloco de " + peerKey + ": " + e.getMessage());
+                        // Verifica o bloco com o manifesto antes de o escrever
+                        if (manifest != null && !manifest.verify(index, data, start, length, digest)) {
+                            corruptBlocks++;
+                            System.err.println("[ERRO] Bloco " + index + " corrompido recebido de " + peerKey);
+                            scheduler.releaseCorrupt(peerKey, index, pending.duplicate);
+                            continue;
+                        }
+                        writeBlock(scheduler.blockOffset(index), data, start, length);
+                        if (scheduler.complete(index)) {
+                            blockCount.increment();
+                        }
+                    }
+                    saveProgressIfDue();
 
-                    // Devolve o bloco à lista para se tentar transferir através de outro peer
-                    lock.lock();
-                    try {
-                        pendingBlocks.add(block);
-                    } finally {
-                        lock.unlock();
+                    if (corruptBlocks >= MAX_CORRUPT_BLOCKS_PER_PEER) {
+                        System.err.println("[ERRO] Peer " + peerKey + " excluído deste download por enviar blocos corrompidos");
+                        break;
                     }
 
+                } catch (IOException e) {
+                    System.err.println("[ERRO] Falha ao transferir bloco de " + peerKey + ": " + e.getMessage());
+
+                    // Devolve os blocos por concluir para se tentar transferir através de outro peer
+                    releaseUnfinished(pending);
                     break;
                 }
             }
         } catch (Exception e) {
             System.err.println("[ERRO] Falha na thread de download: " + e.getMessage());
+        } finally {
+            // Os pedidos ainda sem resposta são cancelados e os seus blocos passam para os outros peers
+            for (PendingRequest pending : new ArrayList<>(inFlight.values())) {
+                pending.cancel();
+                releaseUnfinished(pending);
+                forget(pending, inFlight, ownBlocks);
+            }
+            scheduler.forgetPeer(peerKey);
+            downloads.unregister(peerKey);
+            // Sem peers ativos os blocos em falta nunca chegariam
+            if (activeWorkers.decrementAndGet() == 0 && !scheduler.isFinished()) {
+                scheduler.fail();
+            }
         }
     }
 
-    private byte[] requestBlockFromPeer(FileSearchResult source, FileBlockRequestMessage block) throws IOException, ClassNotFoundException {
-        // Estabelece ligação com o peer
-        try (Socket socket = new Socket(source.getHostName(), source.getOriginPort()); ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream()); ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    // Cancela os pedidos cujos blocos já foram todos concluídos por outros peers
+    private void cancelCompleted(Map<Integer, PendingRequest> inFlight, BitSet ownBlocks) {
+        for (PendingRequest pending : new ArrayList<>(inFlight.values())) {
+            int next = pending.firstBlock;
+            while (next < pending.firstBlock + pending.blockCount && scheduler.isCompleted(next)) {
+                next++;
+            }
+            if (next == pending.firstBlock + pending.blockCount) {
+                pending.cancel();
+                forget(pending, inFlight, ownBlocks);
+            }
+        }
+    }
 
-            // Envia pedido do bloco
-            out.writeObject(block);
-            out.flush();
+    // Retira um pedido dos pedidos em curso do peer
+    private void forget(PendingRequest pending, Map<Integer, PendingRequest> inFlight, BitSet ownBlocks) {
+        inFlight.remove(pending.firstBlock);
+        ownBlocks.clear(pending.firstBlock, pending.firstBlock + pending.blockCount);
+        inFlightBlocks.release(pending.blockCount);
+        downloads.releaseRequest(pending.peerKey);
+    }
 
-            Object response = in.readObject();
-            if (response instanceof FileBlockAnswerMessage answer) {
-                return answer.getData();
-            } else {
-                throw new IOException("Resposta inesperada ao pedido de bloco");
-            }
+    private static long bytesInFlight(Map<Integer, PendingRequest> inFlight) {
+        long bytes = 0;
+        for (PendingRequest pending : inFlight.values()) {
+            bytes += pending.request.getLength();
+        }
+        return bytes;
+    }
+
+    // Devolve os blocos de um pedido que ainda não foram concluídos (uma falha pode
+    // acontecer depois de parte da resposta já ter sido escrita)
+    private void releaseUnfinished(PendingRequest pending) {
+        for (int index = pending.firstBlock; index < pending.firstBlock + pending.blockCount; index++) {
+            releaseBlock(pending, index);
+        }
+    }
+
+    // Um pedido repetido só desiste da repetição; o bloco continua com o peer original
+    private void releaseBlock(PendingRequest pending, int index) {
+        if (scheduler.isCompleted(index)) {
+            return;
+        }
+        if (pending.duplicate) {
+            scheduler.releaseDuplicate(index, 1);
+        } else {
+            scheduler.release(index, 1);
+        }
+    }
+
+    private FileBlockRequestMessage newRequest(int firstBlock, int blockCount) {
+        long offset = scheduler.blockOffset(firstBlock);
+        long end = scheduler.blockOffset(firstBlock + blockCount - 1) + scheduler.blockLength(firstBlock + blockCount - 1);
+        return new FileBlockRequestMessage(fileName, fileHash, offset, (int) (end - offset));
+    }
+
+    // Envia o pedido sem esperar pela resposta, que é posta em answered quando chega
+    private void sendBlockRequest(FileSearchResult source, PendingRequest pending, BlockingQueue<PendingRequest> answered,
+                                  long timeoutMillis) {
+        try {
+            // Reutiliza a ligação persistente ao peer
+            PeerConnection connection = node.getConnectionPool().getConnection(source.getHostName(), source.getOriginPort());
+            pending.connection = connection;
+            pending.future = connection.sendRequest(pending.request, timeoutMillis);
+            pending.future.whenComplete((response, error) -> {
+                pending.response = response;
+                pending.error = error;
+                answered.add(pending);
+            });
+        } catch (IOException e) {
+            pending.error = e;
+            answered.add(pending);
         }
     }
 
     public void createBlockRequests(String fileName, long fileSize) {
         lock.lock();
         try {
-            pendingBlocks.clear();
-            long offset = 0;
-
-            while (offset < fileSize) {
-                int length = (int) Math.min(BLOCK_SIZE, fileSize - offset);
-                pendingBlocks.add(new FileBlockRequestMessage(fileName, offset, length));
-                offset += length;
-            }
+            scheduler = new BlockScheduler(fileSize, BLOCK_SIZE);
         } finally {
             lock.unlock();
         }
     }
 
+    // Pedidos dos blocos que ainda não foram pedidos a nenhum peer
     public List<FileBlockRequestMessage> getBlockRequests() {
-        lock.lock();
-        try {
-            return new ArrayList<>(pendingBlocks);
-        } finally {
-            lock.unlock();
+        List<FileBlockRequestMessage> requests = new ArrayList<>();
+        for (int index : scheduler.pendingBlocks()) {
+            requests.add(new FileBlockRequestMessage(fileName, fileHash, scheduler.blockOffset(index), scheduler.blockLength(index)));
+        }
+        return requests;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getTotalBlocks() {
+        BlockScheduler current = scheduler;
+        return current == null ? 0 : current.getTotalBlocks();
+    }
+
+    public int getCompletedBlocks() {
+        BlockScheduler current = scheduler;
+        return current == null ? 0 : current.getCompletedBlocks();
+    }
+
+    // Tempo desde o início, parado quando o download termina
+    public long getElapsedMillis() {
+        if (startTime == 0) {
+            return 0;
         }
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        return end - startTime;
+    }
+
+    public boolean isFinished() {
+        return finishedAt != 0;
+    }
+
+    // O download terminou e o ficheiro foi guardado
+    public boolean isSaved() {
+        return saved;
+    }
+
+    // O progresso passa a ser mostrado por uma janela em direto
+    public void watch() {
+        watched = true;
     }
 
     public boolean isDownloading() {
@@ -241,4 +701,57 @@ public class DownloadTaskManager {
             lock.unlock();
         }
     }
+
+    // Pedido enviado a um peer, que cobre um ou mais blocos contíguos, com a resposta quando chegar
+    private static class PendingRequest {
+
+        private final String peerKey;
+        private final int firstBlock;
+        private final int blockCount;
+        // Pedido repetido na fase final: os blocos continuam reservados pelo outro peer
+        private final boolean duplicate;
+        private final FileBlockRequestMessage request;
+        private long sentAt = System.nanoTime();
+        private PeerConnection connection;
+        private CompletableFuture<Object> future;
+        private volatile Object response;
+        private volatile Throwable error;
+
+        private PendingRequest(String peerKey, int firstBlock, int blockCount, boolean duplicate, FileBlockRequestMessage request) {
+            this.peerKey = peerKey;
+            this.firstBlock = firstBlock;
+            this.blockCount = blockCount;
+            this.duplicate = duplicate;
+            this.request = request;
+        }
+
+        private void cancel() {
+            if (future != null) {
+                connection.cancel(future);
+            }
+        }
+
+        private boolean isTimedOut() {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            return cause instanceof TimeoutException;
+        }
+
+        // Dados pedidos, ou null se o peer estiver ocupado
+        private byte[] getData() throws IOException {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                throw cause instanceof IOException io ? io : new IOException(cause.getMessage(), cause);
+            }
+            if (response instanceof FileBlockAnswerMessage answer) {
+                // A resposta tem de corresponder ao pedido
+                if (answer.getOffset() != request.getOffset()) {
+                    throw new IOException("Resposta para o offset " + answer.getOffset() + " em vez de " + request.getOffset());
+                }
+                return answer.getData();
+            } else if (response instanceof BusyMessage) {
+                return null;
+            }
+            throw new IOException("Resposta inesperada ao pedido de bloco");
+        }
+    }
 }
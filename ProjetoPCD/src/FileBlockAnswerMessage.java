@@ -3,6 +3,8 @@ import java.io.Serializable;
 
 public class FileBlockAnswerMessage implements Serializable {
 
+    private static final long serialVersionUID = -826825293022018621L;
+
     private String fileName;
     private long offset;
     private byte[] data;
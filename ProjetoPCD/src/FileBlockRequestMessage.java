@@ -1,15 +1,24 @@
 // Identifica um bloco de um ficheiro
 
 import java.io.Serializable;
+import java.math.BigInteger;
 
 public class FileBlockRequestMessage implements Serializable {
 
+    private static final long serialVersionUID = 1079073285922986332L;
+
     private String fileName;    // Nome do ficheiro
     private long offset;        // Indice do byte do inÍcio do bloco
     private int length;         // Tamanho do bloco
+    private BigInteger fileHash; // SHA-256 do ficheiro (null em pedidos de nós antigos)
 
     public FileBlockRequestMessage(String fileName, long offset, int length) {
+        this(fileName, null, offset, length);
+    }
+
+    public FileBlockRequestMessage(String fileName, BigInteger fileHash, long offset, int length) {
         this.fileName = fileName;
+        this.fileHash = fileHash;
         this.offset = offset;
         this.length = length;
     }
@@ -18,6 +27,10 @@ public class FileBlockRequestMessage implements Serializable {
         return fileName;
     }
 
+    public BigInteger getFileHash() {
+        return fileHash;
+    }
+
     public long getOffset() {
         return offset;
     }
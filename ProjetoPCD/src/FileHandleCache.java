@@ -0,0 +1,148 @@
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Ficheiros partilhados abertos para leitura, pelo hash do conteúdo, para
+// que os pedidos de blocos não abram e fechem o ficheiro de cada vez.
+//
+// No máximo MAX_OPEN_FILES ficam abertos; quando o limite é ultrapassado sai
+// o usado há mais tempo. Cada Handle conta quem o está a usar e só é fechado
+// quando sai da cache e o último envio termina. Ficheiros com pelo menos
+// MAP_MIN_BYTES são também mapeados em memória, só para leitura, por regiões
+// de MAP_REGION_BYTES, mapeadas no primeiro pedido. As regiões sobrepõem-se
+// no tamanho máximo de um pedido, para que cada pedido caiba numa só.
+//
+// Configuração: isctorrent.maxOpenFiles (64) e isctorrent.mapMinMb (32; 0
+// desliga o mapeamento).
+public class FileHandleCache {
+
+    private static final int MAX_OPEN_FILES = Integer.getInteger("isctorrent.maxOpenFiles", 64);
+    private static final long MAP_MIN_BYTES = Long.getLong("isctorrent.mapMinMb", 32) * 1024 * 1024;
+    private static final long MAP_REGION_BYTES = 64L * 1024 * 1024;
+
+    // Por ordem de acesso: o primeiro é o usado há mais tempo
+    private final LinkedHashMap<BigInteger, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Devolve o ficheiro aberto, abrindo-o se for preciso. O chamador tem de chamar
+    // release() (ou close()) no Handle quando deixar de o usar.
+    public synchronized Handle acquire(BigInteger hash, File file) throws IOException {
+        Handle handle = handles.get(hash);
+        if (handle != null && handle.file.equals(file) && handle.retain()) {
+            return handle;
+        }
+        if (handle != null) {
+            // O conteúdo passou a estar noutro ficheiro
+            handles.remove(hash);
+            handle.release();
+        }
+        handle = new Handle(file, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        handles.put(hash, handle);
+        Iterator<Map.Entry<BigInteger, Handle>> eldest = handles.entrySet().iterator();
+        while (handles.size() > MAX_OPEN_FILES) {
+            Handle evicted = eldest.next().getValue();
+            eldest.remove();
+            evicted.release();
+        }
+        return handle;
+    }
+
+    // O índice deixou de associar este conteúdo ao ficheiro aberto: fecha-o (depois dos envios em curso)
+    public synchronized void invalidate(BigInteger hash) {
+        Handle handle = handles.remove(hash);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+    public synchronized int getOpenFiles() {
+        return handles.size();
+    }
+
+    // Um ficheiro aberto. Começa com duas referências: a da cache e a de quem o abriu.
+    public static class Handle implements Closeable {
+
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicInteger references = new AtomicInteger(2);
+        // Regiões mapeadas, criadas no primeiro pedido a cada uma (null se o ficheiro não é mapeado)
+        private final MappedByteBuffer[] regions;
+
+        private Handle(File file, FileChannel channel) throws IOException {
+            this.file = file;
+            this.channel = channel;
+            long size = channel.size();
+            this.regions = MAP_MIN_BYTES > 0 && size >= MAP_MIN_BYTES
+                    ? new MappedByteBuffer[(int) ((size + MAP_REGION_BYTES - 1) / MAP_REGION_BYTES)]
+                    : null;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        // Fatia só de leitura do ficheiro mapeado, ou null se o ficheiro não for mapeado
+        public ByteBuffer mappedSlice(long offset, int length) throws IOException {
+            if (regions == null || offset < 0 || length > Node.MAX_BLOCK_REQUEST_LENGTH) {
+                return null;
+            }
+            int index = (int) (offset / MAP_REGION_BYTES);
+            if (index >= regions.length) {
+                return null;
+            }
+            MappedByteBuffer region;
+            synchronized (regions) {
+                region = regions[index];
+                if (region == null) {
+                    long start = index * MAP_REGION_BYTES;
+                    long size = Math.min(MAP_REGION_BYTES + Node.MAX_BLOCK_REQUEST_LENGTH, channel.size() - start);
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                    regions[index] = region;
+                }
+            }
+            int from = (int) (offset - index * MAP_REGION_BYTES);
+            if (from + length > region.capacity()) {
+                return null;
+            }
+            ByteBuffer slice = region.duplicate();
+            slice.position(from).limit(from + length);
+            return slice;
+        }
+
+        private boolean retain() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false;  // Já fechado
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignora, o ficheiro já não é necessário
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
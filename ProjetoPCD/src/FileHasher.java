@@ -0,0 +1,189 @@
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Calcula o SHA-256 dos ficheiros partilhados lendo-os por partes, em
+// paralelo, e guarda os resultados em disco (caminho, tamanho e data de
+// modificação) para que um reinício só volte a ler ficheiros alterados.
+public class FileHasher {
+
+    // Nome do ficheiro da cache, guardado na pasta partilhada mas nunca partilhado
+    public static final String CACHE_FILE_NAME = ".isctorrent-hashes";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path cacheFile;
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private volatile boolean cacheChanged = false;
+    private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    public FileHasher(File workDir) {
+        this.cacheFile = new File(workDir, CACHE_FILE_NAME).toPath();
+        loadCache();
+    }
+
+    // SHA-256 de um ficheiro, com um buffer fixo em vez de ler o ficheiro todo para memória
+    public static BigInteger computeHash(Path path) throws IOException {
+        MessageDigest digest = BlockManifest.newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return new BigInteger(1, digest.digest());
+    }
+
+    // Hash de um ficheiro, usando a cache se o tamanho e a data de modificação não mudaram
+    public BigInteger hash(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+
+        CacheEntry cached = cache.get(key);
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.hash;
+        }
+        BigInteger hash = computeHash(file.toPath());
+        cache.put(key, new CacheEntry(hash, size, modified));
+        cacheChanged = true;
+        return hash;
+    }
+
+    // Guarda na cache um hash calculado por outra via (por exemplo, um download verificado)
+    public void remember(File file, BigInteger hash) {
+        cache.put(file.getAbsolutePath(), new CacheEntry(hash, file.length(), file.lastModified()));
+        cacheChanged = true;
+    }
+
+    public void forget(File file) {
+        if (cache.remove(file.getAbsolutePath()) != null) {
+            cacheChanged = true;
+        }
+    }
+
+    // Calcula os hashes de vários ficheiros em paralelo. Ficheiros que não
+    // puderam ser lidos ficam de fora do resultado.
+    public Map<File, BigInteger> hashAll(File[] files) {
+        List<Future<BigInteger>> futures = new ArrayList<>(files.length);
+        for (File f : files) {
+            futures.add(executor.submit(() -> hash(f)));
+        }
+
+        Map<File, BigInteger> hashes = new LinkedHashMap<>();
+        for (int i = 0; i < files.length; i++) {
+            try {
+                hashes.put(files[i], futures.get(i).get());
+            } catch (ExecutionException e) {
+                System.err.println("[ERRO] Falha ao processar ficheiro: " + files[i].getName() + " - " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Esquece ficheiros que já não existem
+        if (cache.keySet().retainAll(absolutePaths(files))) {
+            cacheChanged = true;
+        }
+        return hashes;
+    }
+
+    private static Set<String> absolutePaths(File[] files) {
+        Set<String> paths = new HashSet<>();
+        for (File f : files) {
+            paths.add(f.getAbsolutePath());
+        }
+        return paths;
+    }
+
+    private void loadCache() {
+        if (!Files.exists(cacheFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // hash, tamanho, data de modificação e caminho, separados por tabs
+                String[] parts = line.split("\t", 4);
+                if (parts.length == 4) {
+                    cache.put(parts[3], new CacheEntry(new BigInteger(parts[0], 16), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("[ERRO] Cache de hashes inválida, os ficheiros vão ser lidos de novo: " + e.getMessage());
+            cache.clear();
+        }
+    }
+
+    // Guarda a cache se mudou, escrevendo num ficheiro temporário que depois a substitui
+    public synchronized void saveCache() {
+        if (!cacheChanged) {
+            return;
+        }
+        cacheChanged = false;
+        Path temp = cacheFile.resolveSibling(CACHE_FILE_NAME + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+                    CacheEntry e = entry.getValue();
+                    writer.write(e.hash.toString(16) + "\t" + e.size + "\t" + e.modified + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            try {
+                Files.move(temp, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[ERRO] Não foi possível guardar a cache de hashes: " + e.getMessage());
+        }
+    }
+
+    // Indica se um ficheiro da pasta pertence à cache e não deve ser partilhado
+    public static boolean isCacheFile(File file) {
+        return file.getName().startsWith(CACHE_FILE_NAME);
+    }
+
+    private static class CacheEntry {
+
+        private final BigInteger hash;
+        private final long size;
+        private final long modified;
+
+        private CacheEntry(BigInteger hash, long size, long modified) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
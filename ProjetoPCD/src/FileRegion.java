@@ -0,0 +1,146 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Resposta a um pedido de bloco que ainda não foi lida do disco. O
+// transporte binário envia-a diretamente do ficheiro para o socket.
+// Os blocos servidos pela BlockCache ou de ficheiros mapeados já estão em
+// memória: a região é então formada por esses buffers, enviados sem cópia.
+public class FileRegion implements Closeable {
+
+    private final String fileName;
+    private final long offset;
+    private final int length;
+    private final FileChannel channel;
+    // Fechado com a região: o próprio canal, ou o Handle partilhado de onde ele veio
+    private final Closeable resource;
+    // Dados em memória (null se a região é lida do ficheiro); a posição de cada buffer avança com o envio
+    private final ByteBuffer[] buffers;
+    // Bytes já enviados por transferSome
+    private long transferred = 0;
+
+    public FileRegion(String fileName, long offset, int length, FileChannel channel) {
+        this(fileName, offset, length, channel, channel);
+    }
+
+    // Região de um canal partilhado: fechar a região liberta resource em vez de fechar o canal
+    public FileRegion(String fileName, long offset, int length, FileChannel channel, Closeable resource) {
+        this.fileName = fileName;
+        this.offset = offset;
+        this.length = length;
+        this.channel = channel;
+        this.resource = resource;
+        this.buffers = null;
+    }
+
+    public FileRegion(String fileName, long offset, ByteBuffer[] buffers) {
+        this.fileName = fileName;
+        this.offset = offset;
+        this.channel = null;
+        this.resource = null;
+        this.buffers = buffers;
+        int total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        this.length = total;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Envia os bytes da região com FileChannel.transferTo, sem passarem pela heap
+    public void transferTo(WritableByteChannel target) throws IOException {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            return;
+        }
+        long position = offset;
+        long remaining = length;
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0 && position >= channel.size()) {
+                throw new IOException("Ficheiro encurtado durante o envio: " + fileName);
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+
+    // Envia o que o destino aceitar sem bloquear (sockets não bloqueantes).
+    // Devolve true quando a região foi toda enviada.
+    public boolean transferSome(WritableByteChannel target) throws IOException {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    if (target.write(buffer) == 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        while (transferred < length) {
+            long position = offset + transferred;
+            long sent = channel.transferTo(position, length - transferred, target);
+            if (sent <= 0) {
+                if (position >= channel.size()) {
+                    throw new IOException("Ficheiro encurtado durante o envio: " + fileName);
+                }
+                return false;
+            }
+            transferred += sent;
+        }
+        return true;
+    }
+
+    // Lê a região para memória, para transportes que precisam do array (nós antigos)
+    public byte[] readData() throws IOException {
+        if (buffers != null) {
+            byte[] data = new byte[length];
+            int position = 0;
+            for (ByteBuffer buffer : buffers) {
+                ByteBuffer source = buffer.duplicate();
+                int count = source.remaining();
+                source.get(data, position, count);
+                position += count;
+            }
+            return data;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        if (buffer.hasRemaining()) {
+            byte[] data = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, data, 0, data.length);
+            return data;
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (resource != null) {
+            resource.close();
+        }
+    }
+}
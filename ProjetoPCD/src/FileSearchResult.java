@@ -1,20 +1,29 @@
 
 import java.io.Serializable;
+import java.math.BigInteger;
 
 public class FileSearchResult implements Serializable {
 
+    private static final long serialVersionUID = -7929417068266973638L;
+
     private WordSearchMessage searchMessage;
     private int fileSize;
     private String fileName;
     private int originPort;
     private String hostName;
+    private BigInteger hash;    // SHA-256 do conteúdo (null em respostas de nós antigos)
 
     public FileSearchResult(WordSearchMessage searchMessage, int fileSize, String fileName, int originPort, String hostName) {
+        this(searchMessage, fileSize, fileName, originPort, hostName, null);
+    }
+
+    public FileSearchResult(WordSearchMessage searchMessage, int fileSize, String fileName, int originPort, String hostName, BigInteger hash) {
         this.searchMessage = searchMessage;
         this.fileSize = fileSize;
         this.fileName = fileName;
         this.originPort = originPort;
         this.hostName = hostName;
+        this.hash = hash;
     }
 
     public String getFileName() {
@@ -37,4 +46,8 @@ public class FileSearchResult implements Serializable {
         return searchMessage;
     }
 
+    public BigInteger getHash() {
+        return hash;
+    }
+
 }
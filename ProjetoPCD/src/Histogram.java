@@ -0,0 +1,107 @@
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ConstructorParameters;
+
+// Histograma de durações com intervalos em potências de 2 de microssegundos.
+// Regista sem bloquear; os percentis são estimados por interpolação dentro do
+// intervalo, com erro máximo do tamanho desse intervalo. Acumula desde o
+// arranque do nó.
+public class Histogram {
+
+    // Intervalo i: durações até 2^i microssegundos (o último também conta as maiores)
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int index = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(index);
+        sumNanos.add(Math.max(0, nanos));
+        maxNanos.accumulate(nanos);
+    }
+
+    public Snapshot snapshot() {
+        // O total vem dos próprios intervalos, para ser coerente com os percentis
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        double mean = total == 0 ? 0 : sumNanos.sum() / (double) total / 1_000_000;
+        double max = maxNanos.get() / 1_000_000.0;
+        // A interpolação pode passar do máximo registado no último intervalo ocupado
+        return new Snapshot(total, mean, Math.min(max, percentile(counts, total, 0.5)),
+                Math.min(max, percentile(counts, total, 0.9)), Math.min(max, percentile(counts, total, 0.99)), max);
+    }
+
+    // Percentil em milissegundos
+    private static double percentile(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        double rank = fraction * total;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0 && seen + counts[i] >= rank) {
+                double lower = i == 0 ? 0 : 1L << (i - 1);
+                double upper = 1L << i;
+                double position = (rank - seen) / counts[i];
+                return (lower + (upper - lower) * position) / 1000;
+            }
+            seen += counts[i];
+        }
+        return (1L << (counts.length - 1)) / 1000.0;
+    }
+
+    // Valores do histograma num instante, em milissegundos (exposto por JMX como CompositeData)
+    public static class Snapshot {
+
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        @ConstructorParameters({"count", "mean", "p50", "p90", "p99", "max"})
+        public Snapshot(long count, double mean, double p50, double p90, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -3,7 +3,9 @@ import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.swing.*;
 
 public class IscTorrent {
@@ -18,12 +20,15 @@ public class IscTorrent {
     private JPanel rightPanel;
     private JButton downloadButton;
     private JButton connectButton;
+    private JButton transfersButton;
     private DefaultListModel<String> listModel;
 
     private Node node;
 
-    // Guardar resultados da última pesquisa
-    private List<FileSearchResult> lastSearchResults = new ArrayList<>();
+    // Guardar resultados da última pesquisa, agrupados por conteúdo (um grupo por linha da lista)
+    private List<List<FileSearchResult>> lastSearchResults = new ArrayList<>();
+    // Pesquisa cujas respostas ainda podem chegar
+    private PeerSearch currentSearch;
 
     public IscTorrent(int port, String workDir) throws IOException {
         File workDirFile = new File(workDir);
@@ -69,14 +74,16 @@ public class IscTorrent {
         resultList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         JScrollPane scrollPane = new JScrollPane(resultList);
 
-        // Painel lateral direito -> Contem os botões "Descarregar" e "Ligar nó"
+        // Painel lateral direito -> Contem os botões "Descarregar", "Ligar nó" e "Transferências"
         rightPanel = new JPanel();
-        rightPanel.setLayout(new GridLayout(2, 1, 5, 5));
+        rightPanel.setLayout(new GridLayout(3, 1, 5, 5));
         downloadButton = new JButton("Descarregar");
         connectButton = new JButton("Ligar a nó");
+        transfersButton = new JButton("Transferências");
 
         rightPanel.add(downloadButton);
         rightPanel.add(connectButton);
+        rightPanel.add(transfersButton);
 
         // Painel inferior -> Combina a lista de resultados e o painel lateral direito
         bottomPanel = new JPanel(new BorderLayout());
@@ -91,6 +98,7 @@ public class IscTorrent {
         connectButton.addActionListener(e -> openNodeConnection());
         searchButton.addActionListener(e -> searchFiles());
         downloadButton.addActionListener(e -> downloadFiles());
+        transfersButton.addActionListener(e -> showTransfers());
     }
 
     public void openNodeConnection() {
@@ -104,41 +112,59 @@ public class IscTorrent {
             return;
         }
 
-        // Executar pesquisa em background
-        new Thread(() -> {
-            try {
-                // Obtém todos os resultados da pesquisa
-                List<FileSearchResult> allResults = node.searchFiles(keyword);
-
-                // Filtra os resultados, excluindo ficheiros que o node ja contém
-                List<FileSearchResult> filteredResults = new ArrayList<>();
-                for (FileSearchResult result : allResults) {
-                    // Adiciona apenas ficheiros que NÃO existem localmente no Node
-                    if (!node.hasLocalFile(result.getFileName())) {
-                        filteredResults.add(result);
-                    }
-                }
-
-                // Guarda apenas os resultados filtrados
-                lastSearchResults = filteredResults;
+        // Uma nova pesquisa substitui a anterior, mesmo que ainda haja peers por responder
+        if (currentSearch != null) {
+            currentSearch.cancel();
+        }
+        List<List<FileSearchResult>> groupedResults = new ArrayList<>();
+        Map<Object, Integer> groupIndex = new HashMap<>();
+        lastSearchResults = groupedResults;
+        listModel.clear();
+
+        // Os resultados de cada peer entram na lista assim que chegam
+        currentSearch = node.searchFiles(keyword, Node.SEARCH_DEADLINE_MS, new SearchListener() {
+            @Override
+            public void onResults(String peerKey, List<FileSearchResult> results) {
+                SwingUtilities.invokeLater(() -> addSearchResults(groupedResults, groupIndex, results));
+            }
 
-                // Agrupar por nome de ficheiro e contar quantos peers têm cada ficheiro
-                java.util.Map<String, Integer> fileCounts = new java.util.HashMap<>();
-                for (FileSearchResult res : filteredResults) {
-                    fileCounts.put(res.getFileName(), fileCounts.getOrDefault(res.getFileName(), 0) + 1);
+            @Override
+            public void onComplete(int answered, int missing) {
+                if (missing > 0) {
+                    System.out.println("[INFO] Pesquisa de \"" + keyword + "\" terminada: " + missing + " de "
+                            + (answered + missing) + " peers não responderam a tempo");
                 }
+            }
+        });
+    }
 
-                SwingUtilities.invokeLater(() -> {
-                    listModel.clear();
-                    for (String fileName : fileCounts.keySet()) {
-                        int count = fileCounts.get(fileName);
-                        listModel.addElement(fileName + "<" + count + ">");
-                    }
-                });
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    // Junta os resultados de um peer aos da pesquisa (na thread da interface). Os resultados
+    // são agrupados por conteúdo (hash), para que o mesmo ficheiro com nomes diferentes conte
+    // como o mesmo e ficheiros diferentes com o mesmo nome não.
+    private void addSearchResults(List<List<FileSearchResult>> groupedResults, Map<Object, Integer> groupIndex,
+                                  List<FileSearchResult> results) {
+        if (groupedResults != lastSearchResults) {
+            return;  // Resultados de uma pesquisa já substituída
+        }
+        for (FileSearchResult res : results) {
+            // Adiciona apenas ficheiros que NÃO existem localmente no Node
+            if (node.hasLocalFile(res)) {
+                continue;
+            }
+            Integer index = groupIndex.get(contentKey(res));
+            if (index == null) {
+                index = groupedResults.size();
+                groupIndex.put(contentKey(res), index);
+                groupedResults.add(new ArrayList<>());
+                listModel.addElement("");
             }
-        }).start();
+            List<FileSearchResult> sources = groupedResults.get(index);
+            // Cada peer conta uma vez, mesmo que tenha o conteúdo com vários nomes
+            if (!hasSourceFromPeer(sources, res)) {
+                sources.add(res);
+                listModel.set(index, sources.get(0).getFileName() + "<" + sources.size() + ">");
+            }
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -152,37 +178,45 @@ public class IscTorrent {
             return;
         }
 
-        // Remover o <numero>
         for (int selectedIndex : selectedIndices) {
-            String selectedItem = listModel.getElementAt(selectedIndex);
-            String fileName = selectedItem.substring(0, selectedItem.lastIndexOf('<')).trim();
-
-            // Procura por todos os peers que têm o ficheiro
-            List<FileSearchResult> sources = new ArrayList<>();
-            for (FileSearchResult result : lastSearchResults) {
-                if (result.getFileName().equals(fileName)) {
-                    sources.add(result);
-                }
-            }
-
-            if (sources.isEmpty()) {
-                JOptionPane.showMessageDialog(frame,
-                        "Nenhuma fonte disponível para o ficheiro: " + fileName,
-                        "Aviso", JOptionPane.WARNING_MESSAGE);
-                continue; // Slta para o próximo ficheiro
-            }
+            // Todos os peers que têm o mesmo conteúdo, independentemente do nome
+            // Cópia: o grupo ainda pode receber peers de uma pesquisa em curso
+            List<FileSearchResult> sources = new ArrayList<>(lastSearchResults.get(selectedIndex));
+            String fileName = sources.get(0).getFileName();
 
             // Usa o tamanho do primeiro resultado encontrado 
             long fileSize = sources.get(0).getFileSize();
 
-            // Inicia o download numa thread separada
-            final String finalFileName = fileName;
-            new Thread(() -> {
-                System.out.println("[INFO] Iniciando download de " + finalFileName);
-                DownloadTaskManager downloadManager = new DownloadTaskManager(node.getWorkDir(), node);
-                downloadManager.startDownload(finalFileName, fileSize, sources);
-            }).start();
+            // O download entra na fila do nó, que limita os downloads e os pedidos a cada peer
+            node.getDownloadScheduler().submit(fileName, fileSize, sources);
+        }
+    }
+
+    // Abre uma janela em direto para cada download em curso
+    public void showTransfers() {
+        List<DownloadTaskManager> downloads = node.getDownloadScheduler().getActiveDownloads();
+        if (downloads.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "Não há downloads em curso",
+                    "Transferências", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        for (DownloadTaskManager download : downloads) {
+            new DownloadStatsFrame(download, node.getMetrics()).show();
+        }
+    }
+
+    private static boolean hasSourceFromPeer(List<FileSearchResult> sources, FileSearchResult result) {
+        for (FileSearchResult source : sources) {
+            if (source.getHostName().equals(result.getHostName()) && source.getOriginPort() == result.getOriginPort()) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    // Identifica o conteúdo de um resultado: o hash ou, em nós antigos, o nome
+    private static Object contentKey(FileSearchResult result) {
+        return result.getHash() != null ? result.getHash() : result.getFileName();
     }
 
     public static void main(String[] args) {
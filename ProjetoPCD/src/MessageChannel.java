@@ -0,0 +1,38 @@
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+// Transporte de mensagens sobre um socket: serialização Java (nós antigos)
+// ou o protocolo binário de MessageCodec
+public interface MessageChannel extends MessageWriter, Closeable {
+
+    // Primeiro byte de um stream de serialização Java (0xACED)
+    int OBJECT_STREAM_MAGIC = 0xAC;
+
+    MessageFrame readMessage() throws IOException;
+
+    // Escolhe o transporte de uma ligação recebida pelo primeiro byte enviado pelo peer
+    static MessageChannel accept(Socket socket) throws IOException {
+        return accept(socket, socket.getInputStream());
+    }
+
+    // Como accept(socket), com um stream de entrada que pode começar por bytes já lidos do socket
+    static MessageChannel accept(Socket socket, InputStream rawIn) throws IOException {
+        InputStream in = new BufferedInputStream(rawIn, BinaryMessageChannel.BUFFER_SIZE);
+        in.mark(1);
+        int first = in.read();
+        if (first == -1) {
+            throw new EOFException("Ligação fechada antes da primeira mensagem");
+        }
+        in.reset();
+
+        if (first == OBJECT_STREAM_MAGIC) {
+            return new ObjectMessageChannel(in, socket.getOutputStream());
+        }
+        return new BinaryMessageChannel(in, socket.getOutputStream(), socket.getChannel());
+    }
+}
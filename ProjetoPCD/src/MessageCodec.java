@@ -0,0 +1,297 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+// Codificação binária das mensagens trocadas entre nós.
+//
+// Cada trama tem o formato:
+//   [int tamanho][byte versão][byte tipo][long id do pedido][corpo]
+// em que o tamanho conta todos os bytes depois do próprio inteiro.
+// O corpo do handshake (host, porta, versão) nunca muda, para que nós
+// com versões diferentes consigam sempre negociar; só pode ganhar campos no
+// fim, como as funcionalidades opcionais, que nós antigos ignoram.
+public final class MessageCodec {
+
+    public static final int PROTOCOL_VERSION = 7;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Bytes da trama depois do tamanho e antes do corpo: versão + tipo + id
+    public static final int HEADER_SIZE = 1 + 1 + 8;
+
+    public static final byte TYPE_EMPTY = 0;
+    public static final byte TYPE_NEW_CONNECTION = 1;
+    public static final byte TYPE_WORD_SEARCH = 2;
+    public static final byte TYPE_SEARCH_RESULTS = 3;
+    public static final byte TYPE_BLOCK_REQUEST = 4;
+    public static final byte TYPE_BLOCK_ANSWER = 5;
+    public static final byte TYPE_MANIFEST_REQUEST = 6;
+    public static final byte TYPE_MANIFEST_ANSWER = 7;
+    public static final byte TYPE_BUSY = 8;
+    public static final byte TYPE_CANCEL = 9;
+    // Só enviada a peers que aceitaram FEATURE_DEFLATE no handshake
+    public static final byte TYPE_COMPRESSED_BLOCK_ANSWER = 10;
+
+    private MessageCodec() {
+    }
+
+    public static void writeFrame(DataOutputStream out, long requestId, Object message) throws IOException {
+        if (message instanceof FileBlockAnswerMessage answer) {
+            // Os dados do bloco seguem diretamente para o stream, sem cópia intermédia
+            byte[] data = answer.getData();
+            writeBlockAnswerHeader(out, requestId, answer.getFileName(), answer.getOffset(), data.length);
+            out.write(data);
+            return;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+        byte type = encodeBody(new DataOutputStream(body), message);
+        writeHeader(out, type, requestId, body.size());
+        body.writeTo(out);
+    }
+
+    // Escreve a trama de uma resposta de bloco até aos dados, que o chamador
+    // envia a seguir (do array ou diretamente do ficheiro)
+    public static void writeBlockAnswerHeader(DataOutputStream out, long requestId, String fileName, long offset, int dataLength) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+        DataOutputStream headerOut = new DataOutputStream(header);
+        writeString(headerOut, fileName);
+        headerOut.writeLong(offset);
+        headerOut.writeInt(dataLength);
+
+        writeHeader(out, TYPE_BLOCK_ANSWER, requestId, header.size() + dataLength);
+        header.writeTo(out);
+    }
+
+    private static void writeHeader(DataOutput out, byte type, long requestId, int bodyLength) throws IOException {
+        int length = HEADER_SIZE + bodyLength;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Mensagem demasiado grande: " + length + " bytes");
+        }
+        out.writeInt(length);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeByte(type);
+        out.writeLong(requestId);
+    }
+
+    private static byte encodeBody(DataOutput out, Object message) throws IOException {
+        if (message == null) {
+            return TYPE_EMPTY;
+        } else if (message instanceof NewConnectionRequest req) {
+            writeString(out, req.getHost());
+            out.writeInt(req.getPort());
+            out.writeInt(req.getProtocolVersion());
+            out.writeInt(req.getFeatures());
+            return TYPE_NEW_CONNECTION;
+        } else if (message instanceof WordSearchMessage wsm) {
+            writeString(out, wsm.getSearchWord());
+            out.writeInt(wsm.getMaxResults());
+            out.writeLong(wsm.getKnownGeneration());
+            return TYPE_WORD_SEARCH;
+        } else if (message instanceof FileBlockRequestMessage request) {
+            writeString(out, request.getFileName());
+            writeHash(out, request.getFileHash());
+            out.writeLong(request.getOffset());
+            out.writeInt(request.getLength());
+            return TYPE_BLOCK_REQUEST;
+        } else if (message instanceof BlockManifestRequest request) {
+            writeHash(out, request.getFileHash());
+            out.writeInt(request.getFirstBlock());
+            out.writeInt(request.getBlockCount());
+            return TYPE_MANIFEST_REQUEST;
+        } else if (message instanceof BlockManifest manifest) {
+            writeHash(out, manifest.getFileHash());
+            out.writeInt(manifest.getBlockSize());
+            out.writeInt(manifest.getFirstBlock());
+            out.writeInt(manifest.getBlockHashes().length);
+            out.write(manifest.getBlockHashes());
+            return TYPE_MANIFEST_ANSWER;
+        } else if (message instanceof CompressedBlockAnswer answer) {
+            writeString(out, answer.getFileName());
+            out.writeLong(answer.getOffset());
+            out.writeInt(answer.getLength());
+            out.writeInt(answer.getCompressedData().length);
+            out.write(answer.getCompressedData());
+            return TYPE_COMPRESSED_BLOCK_ANSWER;
+        } else if (message instanceof BusyMessage) {
+            return TYPE_BUSY;
+        } else if (message instanceof CancelRequestMessage) {
+            return TYPE_CANCEL;
+        } else if (message instanceof SearchResultsMessage answer) {
+            // Sem alterações desde a geração indicada no pedido: só a geração, sem resultados
+            out.writeLong(answer.getGeneration());
+            if (answer.isNotModified()) {
+                out.writeInt(-1);
+                return TYPE_SEARCH_RESULTS;
+            }
+            out.writeInt(answer.getResults().size());
+            for (FileSearchResult result : answer.getResults()) {
+                WordSearchMessage search = result.getSearchMessage();
+                writeString(out, search == null ? null : search.getSearchWord());
+                out.writeInt(result.getFileSize());
+                writeString(out, result.getFileName());
+                out.writeInt(result.getOriginPort());
+                writeString(out, result.getHostName());
+                writeHash(out, result.getHash());
+            }
+            return TYPE_SEARCH_RESULTS;
+        }
+        throw new IOException("Mensagem sem codificação binária: " + message.getClass().getName());
+    }
+
+    public static MessageFrame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new IOException("Trama com tamanho inválido: " + length);
+        }
+        int version = in.readUnsignedByte();
+        byte type = in.readByte();
+        long requestId = in.readLong();
+        int bodyLength = length - HEADER_SIZE;
+
+        // Só o handshake é aceite noutras versões, para que a negociação possa responder
+        if (version != PROTOCOL_VERSION && type != TYPE_NEW_CONNECTION) {
+            throw new IOException("Versão do protocolo não suportada: " + version);
+        }
+
+        if (type == TYPE_BLOCK_ANSWER) {
+            // Lê os dados do bloco diretamente para o array final
+            String fileName = readString(in);
+            long offset = in.readLong();
+            int dataLength = in.readInt();
+            if (dataLength < 0 || dataLength > bodyLength) {
+                throw new IOException("Bloco com tamanho inválido: " + dataLength);
+            }
+            byte[] data = new byte[dataLength];
+            in.readFully(data);
+            return new MessageFrame(requestId, new FileBlockAnswerMessage(fileName, offset, data));
+        }
+
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        return new MessageFrame(requestId, decodeBody(type, new DataInputStream(new ByteArrayInputStream(body))));
+    }
+
+    private static Object decodeBody(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case TYPE_NEW_CONNECTION: {
+                String host = readString(in);
+                int port = in.readInt();
+                int protocolVersion = in.readInt();
+                // Nós antigos não enviam as funcionalidades
+                int features = in.available() >= 4 ? in.readInt() : 0;
+                return new NewConnectionRequest(host, port, protocolVersion, features);
+            }
+            case TYPE_WORD_SEARCH: {
+                String searchWord = readString(in);
+                int maxResults = in.readInt();
+                long knownGeneration = in.readLong();
+                return new WordSearchMessage(searchWord, maxResults, knownGeneration);
+            }
+            case TYPE_BLOCK_REQUEST: {
+                String fileName = readString(in);
+                BigInteger fileHash = readHash(in);
+                long offset = in.readLong();
+                int length = in.readInt();
+                return new FileBlockRequestMessage(fileName, fileHash, offset, length);
+            }
+            case TYPE_SEARCH_RESULTS: {
+                long generation = in.readLong();
+                int count = in.readInt();
+                if (count < 0) {
+                    return new SearchResultsMessage(generation, null);
+                }
+                List<FileSearchResult> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String searchWord = readString(in);
+                    int fileSize = in.readInt();
+                    String fileName = readString(in);
+                    int originPort = in.readInt();
+                    String hostName = readString(in);
+                    BigInteger hash = readHash(in);
+                    WordSearchMessage search = searchWord == null ? null : new WordSearchMessage(searchWord);
+                    results.add(new FileSearchResult(search, fileSize, fileName, originPort, hostName, hash));
+                }
+                return new SearchResultsMessage(generation, results);
+            }
+            case TYPE_MANIFEST_REQUEST: {
+                BigInteger fileHash = readHash(in);
+                int firstBlock = in.readInt();
+                int blockCount = in.readInt();
+                return new BlockManifestRequest(fileHash, firstBlock, blockCount);
+            }
+            case TYPE_MANIFEST_ANSWER: {
+                BigInteger fileHash = readHash(in);
+                int blockSize = in.readInt();
+                int firstBlock = in.readInt();
+                int hashesLength = in.readInt();
+                if (hashesLength < 0 || hashesLength > in.available() || hashesLength % BlockManifest.HASH_SIZE != 0) {
+                    throw new IOException("Manifesto com tamanho inválido: " + hashesLength);
+                }
+                byte[] hashes = new byte[hashesLength];
+                in.readFully(hashes);
+                return new BlockManifest(fileHash, blockSize, firstBlock, hashes);
+            }
+            case TYPE_COMPRESSED_BLOCK_ANSWER: {
+                // Entregue já descomprimida, como uma resposta de bloco normal
+                String fileName = readString(in);
+                long offset = in.readLong();
+                int dataLength = in.readInt();
+                int compressedLength = in.readInt();
+                if (dataLength < 0 || dataLength > Node.MAX_BLOCK_REQUEST_LENGTH
+                        || compressedLength < 0 || compressedLength > in.available()) {
+                    throw new IOException("Bloco comprimido com tamanho inválido: " + dataLength);
+                }
+                byte[] compressed = new byte[compressedLength];
+                in.readFully(compressed);
+                return new FileBlockAnswerMessage(fileName, offset, BlockCompressor.inflate(compressed, dataLength));
+            }
+            case TYPE_BUSY:
+                return new BusyMessage();
+            case TYPE_CANCEL:
+                return new CancelRequestMessage();
+            default:
+                // Tipo vazio ou desconhecido (nó mais recente): o corpo é ignorado
+                return null;
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Hash como [byte tamanho][bytes], com tamanho 0 para null
+    private static void writeHash(DataOutput out, BigInteger hash) throws IOException {
+        if (hash == null) {
+            out.writeByte(0);
+            return;
+        }
+        byte[] bytes = hash.toByteArray();
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static BigInteger readHash(DataInput in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+}
@@ -0,0 +1,25 @@
+
+import java.io.Serializable;
+
+// Envolve uma mensagem com o identificador do pedido, para que várias
+// mensagens possam circular na mesma ligação
+public class MessageEnvelope implements Serializable {
+
+    private static final long serialVersionUID = 5614725714069180792L;
+
+    private final long requestId;
+    private final Object payload;
+
+    public MessageEnvelope(long requestId, Object payload) {
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public Object getPayload() {
+        return payload;
+    }
+}
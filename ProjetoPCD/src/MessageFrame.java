@@ -0,0 +1,27 @@
+
+// Mensagem lida de uma ligação, com o identificador do pedido a que pertence
+public class MessageFrame {
+
+    // Identificador usado por nós antigos, que enviam uma única mensagem sem identificador
+    public static final long UNTAGGED = -1;
+
+    private final long requestId;
+    private final Object message;
+
+    public MessageFrame(long requestId, Object message) {
+        this.requestId = requestId;
+        this.message = message;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public Object getMessage() {
+        return message;
+    }
+
+    public boolean isTagged() {
+        return requestId != UNTAGGED;
+    }
+}
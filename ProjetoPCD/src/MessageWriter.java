@@ -0,0 +1,10 @@
+
+import java.io.IOException;
+
+// Destino das respostas de uma ligação. Quem escreve pode ser uma thread de
+// upload diferente da que lê os pedidos, por isso as escritas têm de ser
+// seguras entre threads.
+public interface MessageWriter {
+
+    void writeMessage(long requestId, Object message) throws IOException;
+}
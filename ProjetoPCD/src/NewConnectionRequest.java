@@ -3,12 +3,31 @@ import java.io.Serializable;
 
 public class NewConnectionRequest implements Serializable {
 
+    // Fixo para que nós antigos continuem a aceitar a classe com o campo da versão
+    private static final long serialVersionUID = 2172969641405940124L;
+
+    // Funcionalidades opcionais do protocolo binário, anunciadas no handshake
+    public static final int FEATURE_DEFLATE = 1;
+
     private final String host;
     private final int port;
+    private final int protocolVersion;    // Versão do protocolo binário suportada (0 em nós antigos)
+    private final int features;           // Suportadas (no pedido) ou aceites (na resposta); 0 em nós antigos
 
     public NewConnectionRequest(String host, int port) {
+        this(host, port, MessageCodec.PROTOCOL_VERSION, localFeatures());
+    }
+
+    public NewConnectionRequest(String host, int port, int protocolVersion, int features) {
         this.host = host;
         this.port = port;
+        this.protocolVersion = protocolVersion;
+        this.features = features;
+    }
+
+    // Funcionalidades que este nó suporta
+    public static int localFeatures() {
+        return BlockCompressor.ENABLED ? FEATURE_DEFLATE : 0;
     }
 
     public String getHost() {
@@ -18,4 +37,16 @@ public class NewConnectionRequest implements Serializable {
     public int getPort() {
         return port;
     }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
 }
@@ -1,39 +1,133 @@
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Node {
 
     private final String workDir;
     private final int listenPort;
     private final Map<BigInteger, File> files = new ConcurrentHashMap<>();
+    // Índice secundário nome -> hash, para pedidos de nós antigos que só indicam o nome
+    private final Map<String, BigInteger> hashesByName = new ConcurrentHashMap<>();
+    // Manifestos de hashes por bloco, calculados no primeiro pedido de cada ficheiro
+    private final Map<BigInteger, BlockManifest> manifests = new ConcurrentHashMap<>();
     private final List<PeerInfo> peers = new CopyOnWriteArrayList<>();
+    private final PeerConnectionPool connectionPool;
+    private final FileHasher hasher;
+    // Índice de palavras dos nomes, mantido a par de files, usado nas pesquisas
+    private final SearchIndex searchIndex = new SearchIndex();
+    // Geração do índice: aumenta sempre que files muda e segue com as respostas a pesquisas,
+    // para quem pesquisa saber se os resultados que guardou ainda são válidos
+    private final AtomicLong indexGeneration = new AtomicLong(1);
+    // Blocos mais pedidos pelos peers, servidos da memória
+    private final BlockCache blockCache = BlockCache.fromSystemProperties();
+    // Ficheiros partilhados mantidos abertos (e mapeados, se grandes) entre pedidos de blocos
+    private final FileHandleCache fileHandles = new FileHandleCache();
+    // Compressão dos blocos enviados aos peers que a aceitaram, e ficheiros que não compensa comprimir
+    private final BlockCompressor blockCompressor = new BlockCompressor();
+    // Limites de débito de uploads e downloads, alteráveis em execução
+    private final BandwidthLimiter bandwidthLimiter = BandwidthLimiter.fromSystemProperties();
+    // Respostas dos peers a pesquisas anteriores deste nó
+    private final SearchCache searchCache = new SearchCache();
+    // Endereço deste nó, obtido uma vez no arranque
+    private final String localHost;
+    // Ligações, pesquisas e downloads correm neste executor em vez de numa thread nova cada
+    private final ExecutorService taskExecutor = TaskExecutors.newTaskExecutor("node");
+    // Envio de blocos, com limite de uploads simultâneos e de pedidos em espera
+    private final ThreadPoolExecutor uploadExecutor = TaskExecutors.newUploadExecutor();
+    // Prazos dos envios de blocos nas ligações bloqueantes e envios atrasados pelo limite de upload
+    private final ScheduledExecutorService uploadTimer = TaskExecutors.newScheduler("upload-timer");
+    // Fila dos downloads deste nó e limites de pedidos por peer partilhados por eles
+    private final DownloadScheduler downloadScheduler = new DownloadScheduler(this);
+    // Débitos, latências, filas e caches, expostos por JMX
+    private final NodeMetrics metrics = new NodeMetrics(this);
+    // Protege alterações ao índice; as leituras usam os mapas concorrentes sem bloquear
+    private final Object indexLock = new Object();
+
+    // Tempo máximo que uma ligação recebida pode ficar sem pedidos
+    private static final int IDLE_TIMEOUT_MS = 120_000;
+    // Tempo máximo de envio de um bloco numa ligação bloqueante, incluindo a espera
+    // pelos envios anteriores na mesma ligação; depois disso a ligação é fechada
+    private static final long UPLOAD_WRITE_TIMEOUT_MS = 60_000;
+    // Máximo de hashes de blocos por resposta (2 MB), para ficheiros grandes caberem numa trama
+    public static final int MAX_MANIFEST_BLOCKS = 65536;
+    // Máximo de bytes enviados numa resposta a um pedido de blocos; pedidos maiores são cortados
+    public static final int MAX_BLOCK_REQUEST_LENGTH = 1024 * 1024;
+    // Servidor com Selector (-Disctorrent.server=nio) em vez de uma thread por ligação
+    private static final boolean SELECTOR_SERVER = "nio".equals(System.getProperty("isctorrent.server"));
+    // Máximo de resultados devolvidos a uma pesquisa, mesmo que o peer peça mais
+    public static final int MAX_SEARCH_RESULTS = 1000;
+    // Prazo das pesquisas nos peers; quem não responder a tempo fica de fora dos resultados
+    public static final long SEARCH_DEADLINE_MS = Long.getLong("isctorrent.searchDeadlineMs", 5000);
 
     public Node(String workDir, int listenPort) throws IOException {
+        this(workDir, listenPort, true);
+    }
+
+    // Com watchShare a false a pasta só é lida no arranque e em refreshFiles
+    // (os benchmarks alteram a pasta de propósito e medem a releitura)
+    public Node(String workDir, int listenPort, boolean watchShare) throws IOException {
         this.workDir = workDir;
         this.listenPort = listenPort;
+        this.localHost = InetAddress.getLocalHost().getHostAddress();
+        this.connectionPool = new PeerConnectionPool(localHost, listenPort);
+        this.hasher = new FileHasher(new File(workDir));
         System.out.println("[INFO] Incializar nó com diretório: " + workDir + " e porta: " + listenPort);
         readFiles();         // Leitura inicial dos ficheiros
+        listIncompleteDownloads();
+        if (watchShare) {
+            ShareWatcher.start(this);   // Mantém o índice atualizado com as alterações na pasta
+        }
         startServer();       // Inicia o servidor deste nó
+        metrics.start(listenPort);
+    }
+
+    // Downloads que ficaram a meio numa execução anterior; são retomados quando o mesmo conteúdo for pedido
+    private void listIncompleteDownloads() {
+        for (DownloadProgress progress : DownloadProgress.findAll(new File(workDir))) {
+            System.out.println("[INFO] Download incompleto: " + progress.getPartFile().getName() + " ("
+                    + progress.countCompleted() + " de " + progress.getTotalBlocks() + " blocos)");
+        }
     }
 
-    public void addPeer(String host, int port) {
+    public synchronized void addPeer(String host, int port) {
+        // O handshake é repetido em cada nova ligação, por isso ignora peers já conhecidos
+        for (PeerInfo peer : peers) {
+            if (peer.getHost().equals(host) && peer.getPort() == port) {
+                return;
+            }
+        }
         peers.add(new PeerInfo(host, port));
     }
 
@@ -45,236 +139,665 @@ public class Node {
         return listenPort;
     }
 
+    public PeerConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public ExecutorService getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public FileHandleCache getFileHandles() {
+        return fileHandles;
+    }
+
+    public BlockCompressor getBlockCompressor() {
+        return blockCompressor;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public DownloadScheduler getDownloadScheduler() {
+        return downloadScheduler;
+    }
+
+    public SearchCache getSearchCache() {
+        return searchCache;
+    }
+
+    public ThreadPoolExecutor getUploadExecutor() {
+        return uploadExecutor;
+    }
+
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
     public boolean hasLocalFile(String fileName) {
-        // Verifica em todos os ficheiros do mapa se existe algum com o nome especificado
-        for (File file : files.values()) {
-            if (file.getName().equals(fileName)) {
-                return true;
+        return hashesByName.containsKey(fileName);
+    }
+
+    // O conteúdo é identificado pelo hash; só respostas de nós antigos dependem do nome
+    public boolean hasLocalFile(FileSearchResult result) {
+        if (result.getHash() != null) {
+            return files.containsKey(result.getHash());
+        }
+        return hasLocalFile(result.getFileName());
+    }
+
+    // Procura um ficheiro partilhado pelo hash ou, se não for indicado, pelo nome
+    private File findFile(BigInteger hash, String fileName) {
+        if (hash != null) {
+            return files.get(hash);
+        }
+        BigInteger byName = fileName == null ? null : hashesByName.get(fileName);
+        return byName == null ? null : files.get(byName);
+    }
+
+    // Regista (ou substitui) um ficheiro no índice. A nova entrada entra antes de a
+    // antiga sair, para que o ficheiro nunca desapareça para pesquisas e pedidos de blocos.
+    private void addFile(BigInteger hash, File f) {
+        synchronized (indexLock) {
+            File replaced = files.put(hash, f);
+            if (!f.equals(replaced)) {
+                indexGeneration.incrementAndGet();
+                if (replaced != null) {
+                    fileHandles.invalidate(hash);
+                }
+            }
+            searchIndex.put(hash, f.getName());
+            BigInteger previous = hashesByName.put(f.getName(), hash);
+            if (previous != null && !previous.equals(hash)) {
+                forgetHash(previous, f.getName());
             }
         }
-        return false;
     }
 
-    // Lê os ficheiros da pasta e guarda no mapa
+    private void removeFile(String fileName) {
+        synchronized (indexLock) {
+            BigInteger hash = hashesByName.remove(fileName);
+            if (hash != null) {
+                forgetHash(hash, fileName);
+            }
+        }
+    }
+
+    // Retira um hash que deixou de corresponder ao ficheiro indicado, a menos que
+    // outro ficheiro da pasta tenha o mesmo conteúdo
+    private void forgetHash(BigInteger hash, String fileName) {
+        File current = files.get(hash);
+        if (current != null && !current.getName().equals(fileName)) {
+            return;
+        }
+        for (Map.Entry<String, BigInteger> entry : hashesByName.entrySet()) {
+            if (entry.getValue().equals(hash)) {
+                files.put(hash, new File(workDir, entry.getKey()));
+                searchIndex.put(hash, entry.getKey());
+                indexGeneration.incrementAndGet();
+                fileHandles.invalidate(hash);
+                return;
+            }
+        }
+        if (files.remove(hash) != null) {
+            indexGeneration.incrementAndGet();
+        }
+        blockCache.invalidate(hash);
+        fileHandles.invalidate(hash);
+        blockCompressor.invalidate(hash);
+        searchIndex.remove(hash);
+        manifests.remove(hash);
+    }
+
+    // Ficheiros da pasta que são partilhados: ficam de fora os .part de downloads
+    // ainda em curso, o seu progresso e a cache de hashes
+    private static boolean isShared(File f) {
+        return !f.getName().endsWith(DownloadTaskManager.PART_EXTENSION) && !DownloadProgress.isProgressFile(f)
+                && !FileHasher.isCacheFile(f);
+    }
+
+    // Atualiza o índice para um ficheiro da pasta que foi criado, alterado ou apagado
+    public void updateFile(File f) {
+        if (!isShared(f)) {
+            return;
+        }
+        if (!f.isFile()) {
+            removeFile(f.getName());
+            hasher.forget(f);
+            System.out.println("[INFO] Ficheiro removido: " + f.getName());
+            return;
+        }
+        try {
+            addFile(hasher.hash(f), f);
+            System.out.println("[INFO] Ficheiro registado: " + f.getName());
+        } catch (IOException e) {
+            System.err.println("[ERRO] Falha ao processar ficheiro: " + f.getName() + " - " + e.getMessage());
+        }
+    }
+
+    // Regista um ficheiro cujo hash já é conhecido (por exemplo, um download verificado)
+    public void updateFile(File f, BigInteger hash) {
+        hasher.remember(f, hash);
+        addFile(hash, f);
+        System.out.println("[INFO] Ficheiro registado: " + f.getName());
+    }
+
+    public void saveHashCache() {
+        hasher.saveCache();
+    }
+
+    // Lê os ficheiros da pasta e atualiza o mapa, retirando os que já não existem
     private void readFiles() {
         File folder = new File(workDir);
-        File[] list = folder.listFiles(File::isFile);
+        File[] list = folder.listFiles(f -> f.isFile() && isShared(f));
         if (list == null) {
             System.err.println("[ERRO] Pasta inválida ou inacessível: " + workDir
             );
             return;
         }
         System.out.println("[INFO] A ler ficheiros do diretório: " + workDir);
-        for (File f : list) {
-            try {
-                byte[] data = Files.readAllBytes(f.toPath());
-                byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
-                BigInteger key = new BigInteger(1, hash);
-                files.put(key, f);
-                System.out.println("[INFO] Ficheiro registado: " + f.getName());
-            } catch (IOException | NoSuchAlgorithmException e) {
-                System.err.println("[ERRO] Falha ao processar ficheiro: " + f.getName() + " - " + e.getMessage());
+        // Os hashes são calculados em paralelo; ficheiros sem alterações vêm da cache
+        Map<File, BigInteger> hashes = hasher.hashAll(list);
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<File, BigInteger> entry : hashes.entrySet()) {
+            addFile(entry.getValue(), entry.getKey());
+            names.add(entry.getKey().getName());
+            System.out.println("[INFO] Ficheiro registado: " + entry.getKey().getName());
+        }
+        for (String name : new ArrayList<>(hashesByName.keySet())) {
+            if (!names.contains(name)) {
+                removeFile(name);
             }
         }
+        hasher.saveCache();
     }
 
     // ServerSocket e handshake
     private void startServer() throws IOException {
-        ServerSocket server = new ServerSocket(listenPort);
+        // Com ServerSocketChannel os sockets aceites têm canal, o que permite enviar blocos com transferTo
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(listenPort));
         System.out.println("[INFO] Servidor iniciado na porta " + listenPort);
 
-        new Thread(() -> {
+        if (SELECTOR_SERVER) {
+            new SelectorServer(this, server).start();
+            return;
+        }
+
+        taskExecutor.execute(() -> {
             while (true) {
                 try {
-                    Socket socket = server.accept();
+                    Socket socket = server.accept().socket();
                     System.out.println("[INFO] Nova ligação recebida de " + socket.getRemoteSocketAddress());
-                    handleConnection(socket);
+                    handleConnection(socket, socket.getInputStream());
                 } catch (IOException e) {
                     System.err.println("[ERRO] Erro ao aceitar ligação: " + e.getMessage());
                 }
             }
-        }).start();
+        });
     }
 
-    private void handleConnection(Socket socket) {
-        new Thread(() -> {
-            try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream()); ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    // Atende uma ligação com leituras bloqueantes. O stream de entrada pode trazer
+    // à frente bytes já lidos do socket (ligações passadas pelo SelectorServer).
+    void handleConnection(Socket socket, InputStream in) {
+        taskExecutor.execute(() -> {
+            metrics.connectionOpened();
+            try (socket) {
+                // Fecha ligações que fiquem inativas demasiado tempo
+                socket.setSoTimeout(IDLE_TIMEOUT_MS);
+                // O cabeçalho e os dados de um bloco seguem em escritas separadas
+                socket.setTcpNoDelay(true);
 
-                Object obj = in.readObject();
+                // O primeiro byte indica se o peer usa o protocolo binário ou serialização Java
+                try (MessageChannel channel = MessageChannel.accept(socket, in)) {
+                    // Uploads desta ligação ainda por enviar, que o peer pode cancelar
+                    Map<Long, Future<?>> uploads = new ConcurrentHashMap<>();
+                    // Compressão dos blocos aceite no handshake
+                    boolean compress = false;
+                    while (true) {
+                        MessageFrame frame = channel.readMessage();
+                        if (frame.getMessage() instanceof FileBlockRequestMessage request) {
+                            // Os blocos são enviados pelo executor de uploads; esta thread continua a ler pedidos
+                            Future<?> upload = submitUpload(socket, channel, frame.getRequestId(), request, uploads, compress);
+                            if (!frame.isTagged()) {
+                                awaitUpload(upload);
+                                break;
+                            }
+                            continue;
+                        }
+                        if (frame.getMessage() instanceof CancelRequestMessage) {
+                            cancelUpload(uploads, frame.getRequestId());
+                            continue;
+                        }
+                        Object reply = handleMessage(frame.getMessage(), channel instanceof BinaryMessageChannel);
+                        if (reply instanceof NewConnectionRequest accepted) {
+                            compress = accepted.hasFeature(NewConnectionRequest.FEATURE_DEFLATE);
+                        }
+                        channel.writeMessage(frame.getRequestId(), reply);
 
-                // Dependendo do tipo de mensagem recebida
-                if (obj instanceof NewConnectionRequest req) {
-                    handleNewConnection(req, out);
-                } else if (obj instanceof WordSearchMessage wsm) {
-                    handleWordSearch(wsm, out);
-                } else if (obj instanceof FileBlockRequestMessage blockRequest) {
-                    handleBlockRequest(blockRequest, out);
-                } else {
-                    System.err.println("[ERRO] Mensagem inesperada durante handshake: " + obj);
+                        // Mensagem isolada (nós antigos): depois da resposta fecha a ligação
+                        if (!frame.isTagged()) {
+                            break;
+                        }
+                    }
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("[ERRO] Erro no handshake: " + e.getMessage());
+            } catch (SocketTimeoutException e) {
+                System.out.println("[INFO] Ligação inativa fechada: " + socket.getRemoteSocketAddress());
+            } catch (EOFException e) {
+                // O peer fechou a ligação
+            } catch (IOException e) {
+                System.err.println("[ERRO] Erro na ligação: " + e.getMessage());
+            } finally {
+                metrics.connectionClosed();
             }
-        }).start();
+        });
+    }
+
+    // Coloca o envio de um bloco na fila de uploads. Se a fila estiver cheia responde
+    // logo que o nó está ocupado, e o peer pede o bloco mais tarde ou a outro nó.
+    // O upload fica em uploads até ser enviado, para poder ser cancelado. Com compress
+    // o peer aceitou blocos comprimidos no handshake.
+    Future<?> submitUpload(Socket socket, MessageWriter channel, long requestId, FileBlockRequestMessage request,
+                           Map<Long, Future<?>> uploads, boolean compress) throws IOException {
+        CompletableFuture<Void> upload = new CompletableFuture<>();
+        uploads.put(requestId, upload);
+        upload.whenComplete((result, error) -> uploads.remove(requestId, upload));
+        try {
+            uploadExecutor.execute(() -> runUploadStep(upload, () -> prepareBlock(socket, channel, requestId, request, compress, upload)));
+            return upload;
+        } catch (RejectedExecutionException e) {
+            upload.complete(null);
+            System.out.println("[INFO] Demasiados uploads em curso, pedido recusado: " + request.getFileName() + " (offset=" + request.getOffset() + ")");
+            sendBusy(channel, requestId, request);
+            return null;
+        }
     }
 
-    // Lida com requests de NewConnectionRequest
-    private void handleNewConnection(NewConnectionRequest req, ObjectOutputStream out) throws IOException {
+    // Nós antigos não conhecem BusyMessage e recebem um bloco vazio
+    private static void sendBusy(MessageWriter channel, long requestId, FileBlockRequestMessage request) throws IOException {
+        Object busy = channel instanceof ObjectMessageChannel
+                ? new FileBlockAnswerMessage(request.getFileName(), request.getOffset(), new byte[0])
+                : new BusyMessage();
+        channel.writeMessage(requestId, busy);
+    }
+
+    // Uma exceção inesperada termina o upload, para quem espera por ele não ficar preso
+    private static void runUploadStep(CompletableFuture<Void> upload, Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            upload.completeExceptionally(e);
+        }
+    }
+
+    // Prepara a resposta e paga-a ao limite de upload. Se o limite mandar esperar, a
+    // escrita é agendada no uploadTimer em vez de adormecer aqui: uma thread de upload
+    // parada por um peer com limite faltaria aos peers sem limite.
+    private void prepareBlock(Socket socket, MessageWriter channel, long requestId, FileBlockRequestMessage request,
+                              boolean compress, CompletableFuture<Void> upload) {
+        // O peer pode ter desligado ou cancelado o pedido enquanto esperava na fila
+        if (socket.isClosed() || upload.isDone()) {
+            upload.complete(null);
+            return;
+        }
+        Object response = handleBlockRequest(request);
+        if (compress && response instanceof FileRegion region) {
+            response = compressBlock(request, region);
+        }
+        // O limite é pago antes de ocupar a ligação, que continua livre para outras respostas
+        String peer = socket.getInetAddress().getHostAddress();
+        int length = wireLength(response);
+        long delay = bandwidthLimiter.reserveUpload(peer, length);
+        if (delay <= 0) {
+            writeBlock(socket, channel, requestId, response, upload);
+            return;
+        }
+        Object delayed = response;
+        // Fica com a resposta quem a reclamar primeiro: o fim da espera ou o cancelamento
+        AtomicBoolean claimed = new AtomicBoolean();
+        try {
+            ScheduledFuture<?> resume = uploadTimer.schedule(() -> {
+                if (claimed.compareAndSet(false, true)) {
+                    resumeUpload(socket, channel, requestId, request, delayed, upload);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+            // Cancelado durante a espera: a escrita já não é feita, a região fecha aqui e os
+            // bytes voltam ao limite, para os pedidos cancelados não atrasarem os seguintes
+            upload.whenComplete((result, error) -> {
+                if (upload.isCancelled() && claimed.compareAndSet(false, true)) {
+                    resume.cancel(false);
+                    bandwidthLimiter.refundUpload(peer, length);
+                    closeResponse(delayed);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // O nó está a fechar
+            closeResponse(delayed);
+            upload.complete(null);
+        }
+    }
+
+    // Fim da espera pelo limite: a escrita volta ao executor de uploads
+    private void resumeUpload(Socket socket, MessageWriter channel, long requestId, FileBlockRequestMessage request,
+                              Object response, CompletableFuture<Void> upload) {
+        try {
+            uploadExecutor.execute(() -> runUploadStep(upload, () -> writeBlock(socket, channel, requestId, response, upload)));
+        } catch (RejectedExecutionException e) {
+            closeResponse(response);
+            upload.complete(null);
+            System.out.println("[INFO] Demasiados uploads em curso, pedido recusado: " + request.getFileName() + " (offset=" + request.getOffset() + ")");
+            // A escrita pode bloquear: fica fora da thread do uploadTimer
+            taskExecutor.execute(() -> {
+                try {
+                    sendBusy(channel, requestId, request);
+                } catch (IOException ex) {
+                    System.err.println("[ERRO] Falha ao enviar bloco: " + ex.getMessage());
+                }
+            });
+        }
+    }
+
+    private void writeBlock(Socket socket, MessageWriter channel, long requestId, Object response, CompletableFuture<Void> upload) {
+        // O pedido pode ter sido cancelado ou a ligação fechada durante a espera pelo limite
+        if (socket.isClosed() || upload.isDone()) {
+            closeResponse(response);
+            upload.complete(null);
+            return;
+        }
+        // Um socket bloqueante não tem prazo de escrita: um peer que deixa de ler prenderia
+        // esta thread e as outras à espera da mesma ligação. O fecho do socket faz falhar
+        // todas. As ligações do SelectorServer têm o seu próprio prazo.
+        ScheduledFuture<?> deadline = channel instanceof MessageChannel
+                ? uploadTimer.schedule(() -> closeStalled(socket), UPLOAD_WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            channel.writeMessage(requestId, response);
+            metrics.recordUpload(socket.getInetAddress().getHostAddress(), wireLength(response));
+        } catch (IOException e) {
+            System.err.println("[ERRO] Falha ao enviar bloco: " + e.getMessage());
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            closeResponse(response);
+            upload.complete(null);
+        }
+    }
+
+    private static void closeResponse(Object response) {
+        if (response instanceof FileRegion region) {
+            closeQuietly(region);
+        }
+    }
+
+    private static void closeStalled(Socket socket) {
+        if (!socket.isClosed()) {
+            System.out.println("[INFO] O peer " + socket.getRemoteSocketAddress() + " não lê as respostas, ligação fechada");
+            closeQuietly(socket);
+        }
+    }
+
+    // Bytes de dados do bloco que a resposta leva
+    private static int wireLength(Object response) {
+        if (response instanceof FileRegion region) {
+            return region.getLength();
+        } else if (response instanceof CompressedBlockAnswer compressed) {
+            return compressed.getCompressedData().length;
+        }
+        return 0;
+    }
+
+    // Bloco comprimido, se o ficheiro for compressível e o bloco encolher o suficiente;
+    // caso contrário a região segue como está, diretamente do ficheiro
+    private Object compressBlock(FileBlockRequestMessage request, FileRegion region) {
+        BigInteger hash = request.getFileHash() != null ? request.getFileHash() : hashesByName.get(request.getFileName());
+        if (hash == null || region.getLength() == 0 || !blockCompressor.worthTrying(hash)) {
+            return region;
+        }
+        try {
+            byte[] data = region.readData();
+            byte[] compressed = blockCompressor.compress(hash, region.getFileName(), data);
+            if (compressed == null) {
+                return region;
+            }
+            closeQuietly(region);
+            return new CompressedBlockAnswer(region.getFileName(), region.getOffset(), data.length, compressed);
+        } catch (IOException e) {
+            System.err.println("[ERRO] Falha ao comprimir bloco: " + e.getMessage());
+            return region;
+        }
+    }
+
+    // O peer já não quer o bloco: se o upload ainda estiver na fila ou à espera do limite
+    // de upload nunca chega a ser enviado
+    static void cancelUpload(Map<Long, Future<?>> uploads, long requestId) {
+        Future<?> upload = uploads.remove(requestId);
+        if (upload != null) {
+            upload.cancel(false);
+        }
+    }
+
+    private static void awaitUpload(Future<?> upload) {
+        if (upload == null) {
+            return;
+        }
+        try {
+            upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("[ERRO] Falha ao enviar bloco: " + e.getCause().getMessage());
+        }
+    }
+
+    // Dependendo do tipo de mensagem recebida devolve a resposta a enviar. Com binary a
+    // false a ligação usa serialização Java e pode vir de um nó antigo.
+    Object handleMessage(Object obj, boolean binary) throws IOException {
+        if (obj instanceof NewConnectionRequest req) {
+            return handleNewConnection(req, binary);
+        } else if (obj instanceof WordSearchMessage wsm) {
+            return handleWordSearch(wsm, binary);
+        } else if (obj instanceof BlockManifestRequest manifestRequest) {
+            return handleManifestRequest(manifestRequest);
+        }
+        System.err.println("[ERRO] Mensagem inesperada: " + obj);
+        return null;
+    }
+
+    // Lida com requests de NewConnectionRequest. A resposta indica as funcionalidades
+    // pedidas que este nó também suporta, só no protocolo binário.
+    private NewConnectionRequest handleNewConnection(NewConnectionRequest req, boolean binary) {
         System.out.printf("[INFO] Pedido de ligação de %s:%d%n", req.getHost(), req.getPort());
         // Responde com os mesmos dados para confirmar
-        String localHost = InetAddress.getLocalHost().getHostAddress();
-        NewConnectionRequest reply = new NewConnectionRequest(localHost, listenPort);
-        out.writeObject(reply);
-        out.flush();
+        int features = binary ? req.getFeatures() & NewConnectionRequest.localFeatures() : 0;
+        NewConnectionRequest reply = new NewConnectionRequest(localHost, listenPort, MessageCodec.PROTOCOL_VERSION, features);
         addPeer(req.getHost(), req.getPort());
         System.out.println("[INFO] Ligação estabelecida com sucesso.");
+        return reply;
     }
 
-    // Lida com requests de WordSearchMessage
-    private void handleWordSearch(WordSearchMessage wsm, ObjectOutputStream out) throws IOException {
-        // Pesquisa ficheiros locais e responde com a lista de resultados
+    // Lida com requests de WordSearchMessage. No protocolo binário a resposta leva a
+    // geração do índice; nós antigos (serialização Java) recebem só a lista de resultados.
+    private Object handleWordSearch(WordSearchMessage wsm, boolean binary) {
+        // Lida antes da pesquisa: se o índice mudar entretanto, a próxima pesquisa condicional repete-a
+        long generation = indexGeneration.get();
+        if (binary && wsm.getKnownGeneration() == generation) {
+            System.out.println("[INFO] Pesquisa recebida, sem alterações desde a última resposta.");
+            return new SearchResultsMessage(generation, null);
+        }
+        int limit = wsm.getMaxResults() > 0 ? Math.min(wsm.getMaxResults(), MAX_SEARCH_RESULTS) : MAX_SEARCH_RESULTS;
+        // Pesquisa no índice de palavras e responde com a lista de resultados
         List<FileSearchResult> results = new ArrayList<>();
-        for (Map.Entry<BigInteger, File> entry : files.entrySet()) {
-            File f = entry.getValue();
-            if (f.getName().contains(wsm.getSearchWord())) {
-                results.add(new FileSearchResult(
-                        wsm,
-                        (int) f.length(),
-                        f.getName(),
-                        listenPort,
-                        InetAddress.getLocalHost().getHostAddress()));
+        for (BigInteger hash : searchIndex.search(wsm.getSearchWord(), limit)) {
+            File f = files.get(hash);
+            if (f == null) {
+                continue;   // Retirado entretanto
             }
+            results.add(new FileSearchResult(
+                    wsm,
+                    (int) f.length(),
+                    f.getName(),
+                    listenPort,
+                    localHost,
+                    hash));
         }
-        out.writeObject(results);
-        out.flush();
         System.out.println("[INFO] Pesquisa recebida e respondida.");
+        return binary ? new SearchResultsMessage(generation, results) : results;
     }
 
     // Lida com pedidos de FileBlockRequestMessage
-    private void handleBlockRequest(FileBlockRequestMessage request, ObjectOutputStream out) throws IOException {
+    Object handleBlockRequest(FileBlockRequestMessage request) {
         String fileName = request.getFileName();
         long offset = request.getOffset();
         int length = request.getLength();
 
-        // Procura o ficheiro
-        File requestedFile = null;
-        for (File file : files.values()) {
-            if (file.getName().equals(fileName)) {
-                requestedFile = file;
-                break;
-            }
-        }
+        // Procura o ficheiro pelo hash do conteúdo (O(1))
+        BigInteger hash = request.getFileHash() != null ? request.getFileHash() : hashesByName.get(fileName);
+        File requestedFile = findFile(hash, fileName);
 
         if (requestedFile == null) {
             System.err.println("[ERRO] Ficheiro solicitado não encontrado: " + fileName);
             // Envia resposta vazia
-            out.writeObject(new FileBlockAnswerMessage(fileName, offset, new byte[0]));
-            out.flush();
-            return;
+            return new FileBlockAnswerMessage(fileName, offset, new byte[0]);
         }
 
+        FileHandleCache.Handle handle = null;
         try {
-            // Lê o bloco solicitado
-            byte[] data = new byte[length];
-            try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(requestedFile, "r")) {
-                raf.seek(offset);
-                int bytesRead = raf.read(data, 0, length);
-
-                // Se leu menos bytes que o solicitado ajusta o array
-                if (bytesRead < length) {
-                    byte[] trimmedData = new byte[bytesRead];
-                    System.arraycopy(data, 0, trimmedData, 0, bytesRead);
-                    data = trimmedData;
-                }
+            // O bloco não é lido aqui: o transporte envia-o do ficheiro (já aberto) para o socket
+            handle = fileHandles.acquire(hash, requestedFile);
+            FileChannel channel = handle.getChannel();
+            int available = (int) Math.max(0, Math.min(Math.min(length, MAX_BLOCK_REQUEST_LENGTH), channel.size() - Math.max(0, offset)));
+            System.out.println("[INFO] Bloco enviado: " + fileName + " (offset=" + offset + ", length=" + available + ")");
+            // Blocos populares vêm da memória
+            FileRegion cached = offset < 0 ? null : blockCache.serve(hash, fileName, offset, available, channel);
+            if (cached != null) {
+                handle.release();
+                return cached;
             }
-            // Envia resposta
-            FileBlockAnswerMessage response = new FileBlockAnswerMessage(fileName, offset, data);
-            out.writeObject(response);
-            out.flush();
-
-            System.out.println("[INFO] Bloco enviado: " + fileName + " (offset=" + offset + ", length=" + data.length + ")");
+            // Ficheiros grandes são enviados a partir do mapeamento em memória
+            ByteBuffer mapped = handle.mappedSlice(offset, available);
+            if (mapped != null) {
+                handle.release();
+                return new FileRegion(fileName, offset, new ByteBuffer[]{mapped});
+            }
+            return new FileRegion(fileName, offset, available, channel, handle);
         } catch (IOException e) {
             System.err.println("[ERRO] Falha ao ler bloco: " + e.getMessage());
+            if (handle != null) {
+                handle.release();
+            }
             // Envia resposta vazia para indicar erro
-            out.writeObject(new FileBlockAnswerMessage(fileName, offset, new byte[0]));
-            out.flush();
+            return new FileBlockAnswerMessage(fileName, offset, new byte[0]);
+        }
+    }
+
+    // Lida com pedidos de BlockManifestRequest
+    private BlockManifest handleManifestRequest(BlockManifestRequest request) {
+        BigInteger hash = request.getFileHash();
+        File file = hash == null ? null : files.get(hash);
+        if (file == null) {
+            System.err.println("[ERRO] Manifesto pedido para ficheiro desconhecido: " + hash);
+            return null;
+        }
+        try {
+            BlockManifest manifest = manifests.get(hash);
+            if (manifest == null) {
+                manifest = BlockManifest.compute(hash, file, DownloadTaskManager.BLOCK_SIZE);
+                manifests.put(hash, manifest);
+            }
+            return manifest.slice(request.getFirstBlock(), Math.min(request.getBlockCount(), MAX_MANIFEST_BLOCKS));
+        } catch (IOException e) {
+            System.err.println("[ERRO] Falha ao calcular manifesto de " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignora, o recurso já não é necessário
+            }
         }
     }
 
     // Ligação a outro nó manualmente
     public void connectToNode(String host, int port) {
-        new Thread(() -> {
+        taskExecutor.execute(() -> {
             try {
                 // Verificar se o nó não se liga a si mesmo
-                String localHost = InetAddress.getLocalHost().getHostAddress();
                 if ((host.equals(localHost) || host.equals("localhost")) && port == listenPort) {
                     System.err.println("[ERRO] Não é possível ligar-se a si mesmo.");
                     return;
                 }
                 System.out.printf("[INFO] A tentar ligar a %s:%d...%n", host, port);
-                try (Socket sock = new Socket(host, port); ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream()); ObjectInputStream in = new ObjectInputStream(sock.getInputStream())) {
-                    // Envia pedido de conexão
-                    out.writeObject(new NewConnectionRequest(localHost, listenPort));
-                    out.flush();
-                    // Lê resposta
-                    Object obj = in.readObject();
-                    if (obj instanceof NewConnectionRequest reply) {
-                        System.out.printf("[INFO] Ligação aceite por %s:%d%n", reply.getHost(), reply.getPort());
-                        addPeer(host, port);
-                    } else {
-                        System.err.println("[ERRO] Resposta inesperada: " + obj);
-                    }
-                }
-            } catch (IOException | ClassNotFoundException e) {
+                // O pedido de conexão é o handshake da ligação persistente
+                PeerConnection connection = connectionPool.getConnection(host, port);
+                NewConnectionRequest reply = connection.getHandshakeReply();
+                System.out.printf("[INFO] Ligação aceite por %s:%d%n", reply.getHost(), reply.getPort());
+                addPeer(host, port);
+            } catch (IOException e) {
                 System.err.println("[ERRO] Não foi possível ligar a " + host + ":" + port + " - " + e.getMessage());
             }
-        }
-        ).start();
+        });
     }
 
     public Map<BigInteger, File> getFiles() {
         return files;
     }
 
-    // Pesquisa de ficheiros
+    // Pesquisa nos peers, entregando ao listener os resultados de cada um assim que chegam.
+    // Ao fim de deadlineMillis a pesquisa termina sem esperar pelos peers que faltam.
+    public PeerSearch searchFiles(String keyword, long deadlineMillis, SearchListener listener) {
+        // A latência de cada peer é medida desde o início da pesquisa até chegarem as suas respostas
+        long start = System.nanoTime();
+        SearchListener timed = new SearchListener() {
+            @Override
+            public void onResults(String peerKey, List<FileSearchResult> results) {
+                metrics.recordSearchLatency(System.nanoTime() - start);
+                listener.onResults(peerKey, results);
+            }
+
+            @Override
+            public void onComplete(int answered, int missing) {
+                listener.onComplete(answered, missing);
+            }
+        };
+        PeerSearch search = new PeerSearch(keyword, new ArrayList<>(peers), connectionPool, searchCache, taskExecutor, timed);
+        search.start(deadlineMillis);
+        return search;
+    }
+
+    // Pesquisa de ficheiros: espera por todas as respostas, no máximo SEARCH_DEADLINE_MS
     public List<FileSearchResult> searchFiles(String keyword) throws InterruptedException {
-        WordSearchMessage msg = new WordSearchMessage(keyword);
-        int n = peers.size();
-        CountDownLatch latch = new CountDownLatch(n);
+        CountDownLatch latch = new CountDownLatch(1);
         List<FileSearchResult> aggregated = Collections.synchronizedList(new ArrayList<>());
 
-        for (PeerInfo peer : peers) {
-            new Thread(() -> {
-                try (Socket sock = new Socket(peer.getHost(), peer.getPort()); ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream()); ObjectInputStream in = new ObjectInputStream(sock.getInputStream())) {
-
-                    // Envia pesquisa
-                    out.writeObject(msg);
-                    out.flush();
-
-                    // Espera pela lista de resultados
-                    Object resp = in.readObject();
-                    if (resp instanceof List<?> list) {
-                        for (Object o : list) {
-                            if (o instanceof FileSearchResult fsr) {
-                                aggregated.add(fsr);
-                            }
-                        }
-                    }
-                } catch (IOException | ClassNotFoundException e) {
-                    System.err.println("Erro ao comunicar com o peer " + peer + ": " + e.getMessage());
-                } finally {
-                    latch.countDown();
-                }
-            }).start();
-        }
+        searchFiles(keyword, SEARCH_DEADLINE_MS, new SearchListener() {
+            @Override
+            public void onResults(String peerKey, List<FileSearchResult> results) {
+                aggregated.addAll(results);
+            }
+
+            @Override
+            public void onComplete(int answered, int missing) {
+                latch.countDown();
+            }
+        });
         // Espera pelas respostas
         latch.await();
         return aggregated;
     }
 
-    // Método para recarregar ficheiros do diretório
+    // Método para recarregar ficheiros do diretório. O índice é atualizado ficheiro a
+    // ficheiro (sem ser esvaziado) e só ficheiros alterados são lidos de novo.
     public synchronized void refreshFiles() {
-        files.clear();
         readFiles();
     }
 }
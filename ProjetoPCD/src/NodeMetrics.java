@@ -0,0 +1,336 @@
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Métricas de um nó: débitos de upload e download (no total e por peer), RTT
+// dos blocos, latência das pesquisas, ligações, threads, filas e caches.
+//
+// São expostas por JMX (isctorrent:type=Node,port=<porta>) e, se
+// isctorrent.metricsPort for indicado, também em texto simples em
+// http://127.0.0.1:<porta>/metrics, no formato de exposição do Prometheus.
+// Os contadores das caches, filas e limites são lidos dos próprios
+// componentes no momento da leitura.
+public class NodeMetrics implements NodeMetricsMXBean {
+
+    private static final int SCRAPE_PORT = Integer.getInteger("isctorrent.metricsPort", 0);
+    // Segundos completos usados no cálculo dos débitos
+    private static final int WINDOW_SECONDS = 5;
+
+    private final Node node;
+    private final RateMeter upload = new RateMeter();
+    private final RateMeter download = new RateMeter();
+    private final Map<String, RateMeter> peerUploads = new ConcurrentHashMap<>();
+    private final Map<String, RateMeter> peerDownloads = new ConcurrentHashMap<>();
+    private final Histogram blockRtt = new Histogram();
+    private final Histogram searchLatency = new Histogram();
+    private final AtomicInteger serverConnections = new AtomicInteger();
+
+    public NodeMetrics(Node node) {
+        this.node = node;
+    }
+
+    // Regista o MBean e, se configurado, abre o endpoint de texto
+    public void start(int listenPort) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("isctorrent:type=Node,port=" + listenPort));
+        } catch (JMException e) {
+            System.err.println("[ERRO] Não foi possível registar as métricas JMX: " + e.getMessage());
+        }
+        if (SCRAPE_PORT > 0) {
+            try {
+                startScrapeEndpoint();
+            } catch (IOException e) {
+                System.err.println("[ERRO] Não foi possível abrir o endpoint de métricas na porta " + SCRAPE_PORT + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void startScrapeEndpoint() throws IOException {
+        // Só em localhost: as métricas revelam os peers e os ficheiros em transferência
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), SCRAPE_PORT), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("[INFO] Métricas disponíveis em http://127.0.0.1:" + SCRAPE_PORT + "/metrics");
+    }
+
+    public void recordUpload(String peer, int bytes) {
+        upload.add(bytes);
+        peerUploads.computeIfAbsent(peer, p -> new RateMeter()).add(bytes);
+    }
+
+    public void recordDownload(String peerKey, int bytes) {
+        download.add(bytes);
+        peerDownloads.computeIfAbsent(peerKey, p -> new RateMeter()).add(bytes);
+    }
+
+    public void recordBlockRtt(long nanos) {
+        blockRtt.record(nanos);
+    }
+
+    public void recordSearchLatency(long nanos) {
+        searchLatency.record(nanos);
+    }
+
+    public void connectionOpened() {
+        serverConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        serverConnections.decrementAndGet();
+    }
+
+    @Override
+    public double getUploadBytesPerSecond() {
+        return upload.rate();
+    }
+
+    @Override
+    public double getDownloadBytesPerSecond() {
+        return download.rate();
+    }
+
+    @Override
+    public long getUploadedBytes() {
+        return upload.total();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return download.total();
+    }
+
+    @Override
+    public Map<String, Double> getPeerUploadBytesPerSecond() {
+        return rates(peerUploads);
+    }
+
+    @Override
+    public Map<String, Double> getPeerDownloadBytesPerSecond() {
+        return rates(peerDownloads);
+    }
+
+    // Só os peers com tráfego na janela
+    private static Map<String, Double> rates(Map<String, RateMeter> meters) {
+        Map<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<String, RateMeter> entry : meters.entrySet()) {
+            double rate = entry.getValue().rate();
+            if (rate > 0) {
+                rates.put(entry.getKey(), rate);
+            }
+        }
+        return rates;
+    }
+
+    @Override
+    public Histogram.Snapshot getBlockRtt() {
+        return blockRtt.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getSearchLatency() {
+        return searchLatency.snapshot();
+    }
+
+    @Override
+    public int getServerConnections() {
+        return serverConnections.get();
+    }
+
+    @Override
+    public int getPooledConnections() {
+        return node.getConnectionPool().getOpenConnections();
+    }
+
+    @Override
+    public int getThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    @Override
+    public int getActiveUploads() {
+        return node.getUploadExecutor().getActiveCount();
+    }
+
+    @Override
+    public int getQueuedUploads() {
+        return node.getUploadExecutor().getQueue().size();
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return node.getDownloadScheduler().getRunningDownloads();
+    }
+
+    @Override
+    public int getQueuedDownloads() {
+        return node.getDownloadScheduler().getQueuedDownloads();
+    }
+
+    @Override
+    public double getBlockCacheHitRate() {
+        return node.getBlockCache().getHitRate();
+    }
+
+    @Override
+    public double getSearchCacheHitRate() {
+        return node.getSearchCache().getHitRate();
+    }
+
+    @Override
+    public int getOpenFiles() {
+        return node.getFileHandles().getOpenFiles();
+    }
+
+    @Override
+    public long getCompressedBlocks() {
+        return node.getBlockCompressor().getCompressedBlocks();
+    }
+
+    @Override
+    public long getCompressionBytesSaved() {
+        return node.getBlockCompressor().getBytesSaved();
+    }
+
+    @Override
+    public long getUploadLimit() {
+        return node.getBandwidthLimiter().getUploadRate();
+    }
+
+    @Override
+    public void setUploadLimit(long bytesPerSecond) {
+        node.getBandwidthLimiter().setUploadRate(bytesPerSecond);
+    }
+
+    @Override
+    public long getUploadLimitPerPeer() {
+        return node.getBandwidthLimiter().getUploadRatePerPeer();
+    }
+
+    @Override
+    public void setUploadLimitPerPeer(long bytesPerSecond) {
+        node.getBandwidthLimiter().setUploadRatePerPeer(bytesPerSecond);
+    }
+
+    @Override
+    public long getDownloadLimit() {
+        return node.getBandwidthLimiter().getDownloadRate();
+    }
+
+    @Override
+    public void setDownloadLimit(long bytesPerSecond) {
+        node.getBandwidthLimiter().setDownloadRate(bytesPerSecond);
+    }
+
+    @Override
+    public long getDownloadLimitPerPeer() {
+        return node.getBandwidthLimiter().getDownloadRatePerPeer();
+    }
+
+    @Override
+    public void setDownloadLimitPerPeer(long bytesPerSecond) {
+        node.getBandwidthLimiter().setDownloadRatePerPeer(bytesPerSecond);
+    }
+
+    // Todas as métricas em texto, uma por linha
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "isctorrent_upload_bytes_per_second", getUploadBytesPerSecond());
+        line(sb, "isctorrent_download_bytes_per_second", getDownloadBytesPerSecond());
+        line(sb, "isctorrent_uploaded_bytes_total", getUploadedBytes());
+        line(sb, "isctorrent_downloaded_bytes_total", getDownloadedBytes());
+        for (Map.Entry<String, Double> entry : getPeerUploadBytesPerSecond().entrySet()) {
+            line(sb, "isctorrent_peer_upload_bytes_per_second{peer=\"" + entry.getKey() + "\"}", entry.getValue());
+        }
+        for (Map.Entry<String, Double> entry : getPeerDownloadBytesPerSecond().entrySet()) {
+            line(sb, "isctorrent_peer_download_bytes_per_second{peer=\"" + entry.getKey() + "\"}", entry.getValue());
+        }
+        histogram(sb, "isctorrent_block_rtt_ms", getBlockRtt());
+        histogram(sb, "isctorrent_search_latency_ms", getSearchLatency());
+        line(sb, "isctorrent_server_connections", getServerConnections());
+        line(sb, "isctorrent_pooled_connections", getPooledConnections());
+        line(sb, "isctorrent_threads", getThreads());
+        line(sb, "isctorrent_active_uploads", getActiveUploads());
+        line(sb, "isctorrent_queued_uploads", getQueuedUploads());
+        line(sb, "isctorrent_active_downloads", getActiveDownloads());
+        line(sb, "isctorrent_queued_downloads", getQueuedDownloads());
+        line(sb, "isctorrent_block_cache_hit_rate", getBlockCacheHitRate());
+        line(sb, "isctorrent_search_cache_hit_rate", getSearchCacheHitRate());
+        line(sb, "isctorrent_open_files", getOpenFiles());
+        line(sb, "isctorrent_compressed_blocks_total", getCompressedBlocks());
+        line(sb, "isctorrent_compression_saved_bytes_total", getCompressionBytesSaved());
+        line(sb, "isctorrent_upload_limit_bytes_per_second", getUploadLimit());
+        line(sb, "isctorrent_download_limit_bytes_per_second", getDownloadLimit());
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, Histogram.Snapshot snapshot) {
+        line(sb, name + "{quantile=\"0.5\"}", snapshot.getP50());
+        line(sb, name + "{quantile=\"0.9\"}", snapshot.getP90());
+        line(sb, name + "{quantile=\"0.99\"}", snapshot.getP99());
+        line(sb, name + "_mean", snapshot.getMean());
+        line(sb, name + "_max", snapshot.getMax());
+        line(sb, name + "_count", snapshot.getCount());
+    }
+
+    private static void line(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Bytes por segundo nos últimos WINDOW_SECONDS segundos completos, com um
+    // contador por segundo reutilizado em círculo
+    private static class RateMeter {
+
+        private final long[] bytes = new long[WINDOW_SECONDS + 1];
+        private final long[] seconds = new long[WINDOW_SECONDS + 1];
+        private long total = 0;
+
+        private synchronized void add(long count) {
+            long second = System.nanoTime() / 1_000_000_000L;
+            int slot = (int) (second % bytes.length);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                bytes[slot] = 0;
+            }
+            bytes[slot] += count;
+            total += count;
+        }
+
+        private synchronized double rate() {
+            long second = System.nanoTime() / 1_000_000_000L;
+            long sum = 0;
+            for (int slot = 0; slot < bytes.length; slot++) {
+                // O segundo atual ainda não terminou e fica de fora
+                if (seconds[slot] < second && seconds[slot] >= second - WINDOW_SECONDS) {
+                    sum += bytes[slot];
+                }
+            }
+            return sum / (double) WINDOW_SECONDS;
+        }
+
+        private synchronized long total() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+
+import java.util.Map;
+
+// Métricas de um nó expostas por JMX (isctorrent:type=Node,port=<porta>).
+// Débitos em bytes por segundo, médios nos últimos segundos; durações em
+// milissegundos. Os limites de débito podem ser alterados (0 é sem limite).
+public interface NodeMetricsMXBean {
+
+    double getUploadBytesPerSecond();
+
+    double getDownloadBytesPerSecond();
+
+    long getUploadedBytes();
+
+    long getDownloadedBytes();
+
+    Map<String, Double> getPeerUploadBytesPerSecond();
+
+    Map<String, Double> getPeerDownloadBytesPerSecond();
+
+    Histogram.Snapshot getBlockRtt();
+
+    Histogram.Snapshot getSearchLatency();
+
+    int getServerConnections();
+
+    int getPooledConnections();
+
+    int getThreads();
+
+    int getActiveUploads();
+
+    int getQueuedUploads();
+
+    int getActiveDownloads();
+
+    int getQueuedDownloads();
+
+    double getBlockCacheHitRate();
+
+    double getSearchCacheHitRate();
+
+    int getOpenFiles();
+
+    long getCompressedBlocks();
+
+    long getCompressionBytesSaved();
+
+    long getUploadLimit();
+
+    void setUploadLimit(long bytesPerSecond);
+
+    long getUploadLimitPerPeer();
+
+    void setUploadLimitPerPeer(long bytesPerSecond);
+
+    long getDownloadLimit();
+
+    void setDownloadLimit(long bytesPerSecond);
+
+    long getDownloadLimitPerPeer();
+
+    void setDownloadLimitPerPeer(long bytesPerSecond);
+}
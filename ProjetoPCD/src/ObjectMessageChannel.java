@@ -0,0 +1,63 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+// Transporte por serialização Java, mantido para comunicar com nós antigos
+public class ObjectMessageChannel implements MessageChannel {
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    public ObjectMessageChannel(InputStream rawIn, OutputStream rawOut) throws IOException {
+        this.out = new ObjectOutputStream(rawOut);
+        this.out.flush();
+        this.in = new ObjectInputStream(rawIn);
+    }
+
+    @Override
+    public void writeMessage(long requestId, Object message) throws IOException {
+        if (message instanceof FileRegion region) {
+            message = new FileBlockAnswerMessage(region.getFileName(), region.getOffset(), region.readData());
+        }
+        synchronized (out) {
+            if (requestId == MessageFrame.UNTAGGED) {
+                if (message == null) {
+                    return;
+                }
+                // Mensagem isolada: o outro lado lê só este objeto e fecha o socket, e
+                // um reset por ler faria o fecho chegar como ligação reiniciada
+                out.writeObject(message);
+            } else {
+                out.writeObject(new MessageEnvelope(requestId, message));
+                // Limpa a tabela de referências para não reter os objetos já enviados
+                out.reset();
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public MessageFrame readMessage() throws IOException {
+        try {
+            Object obj = in.readObject();
+            if (obj instanceof MessageEnvelope envelope) {
+                return new MessageFrame(envelope.getRequestId(), envelope.getPayload());
+            }
+            return new MessageFrame(MessageFrame.UNTAGGED, obj);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Classe desconhecida recebida: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
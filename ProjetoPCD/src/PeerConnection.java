@@ -0,0 +1,322 @@
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ligação persistente a um peer. Cada pedido leva um identificador e as
+// respostas são entregues ao pedido correspondente pela thread de leitura.
+//
+// Os nós antigos (serialização Java) tratam uma única mensagem por socket: com
+// eles não há socket persistente e cada pedido abre um socket novo, envia a
+// mensagem sem identificador, lê a resposta e fecha.
+public class PeerConnection implements Closeable {
+
+    // Tempo máximo de espera pela ligação e pela resposta ao handshake
+    private static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+    // Tempo durante o qual uma resposta a um pedido abandonado ainda é esperada
+    private static final long ABANDONED_TTL_MS = 60_000;
+    // Tempo máximo de espera pela resposta de um nó antigo, que não aceita cancelamentos
+    private static final int LEGACY_REQUEST_TIMEOUT_MS = 60_000;
+    // Threads que fazem os pedidos aos nós antigos, um socket de cada vez
+    private static final ExecutorService LEGACY_EXECUTOR = TaskExecutors.newTaskExecutor("legacy-peer");
+
+    private final String host;
+    private final int port;
+    private final Socket socket;            // null em nós antigos
+    private final MessageChannel channel;   // null em nós antigos
+    private final NewConnectionRequest handshakeReply;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Object>> pendingRequests = new ConcurrentHashMap<>();
+    // Pedidos cancelados ou fora do prazo, com a hora do abandono: a resposta, se vier, é ignorada
+    private final Map<Long, Long> abandonedRequests = new ConcurrentHashMap<>();
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean closed = false;
+
+    private PeerConnection(String host, int port, Socket socket, MessageChannel channel, NewConnectionRequest handshakeReply) {
+        this.host = host;
+        this.port = port;
+        this.socket = socket;
+        this.channel = channel;
+        this.handshakeReply = handshakeReply;
+
+        if (socket != null) {
+            Thread reader = new Thread(this::readLoop);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // Abre uma ligação e faz o handshake com o peer. Com binary a true tenta o
+    // protocolo binário; caso contrário usa serialização Java (nós antigos).
+    public static PeerConnection open(String host, int port, NewConnectionRequest hello, boolean binary) throws IOException {
+        if (!binary) {
+            Object reply = exchange(host, port, hello, HANDSHAKE_TIMEOUT_MS);
+            if (!(reply instanceof NewConnectionRequest handshakeReply)) {
+                throw new IOException("Resposta inesperada ao handshake: " + reply);
+            }
+            return new PeerConnection(host, port, null, null, handshakeReply);
+        }
+
+        Socket socket = connect(host, port);
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BinaryMessageChannel.BUFFER_SIZE);
+            MessageChannel channel = new BinaryMessageChannel(in, socket.getOutputStream());
+
+            channel.writeMessage(0, hello);
+            checkNotObjectStream(in);
+            Object reply = channel.readMessage().getMessage();
+            socket.setSoTimeout(0);
+
+            if (!(reply instanceof NewConnectionRequest handshakeReply)) {
+                throw new IOException("Resposta inesperada ao handshake: " + reply);
+            }
+            if (handshakeReply.getProtocolVersion() != MessageCodec.PROTOCOL_VERSION) {
+                throw new ProtocolMismatchException("Versão do protocolo do peer: " + handshakeReply.getProtocolVersion());
+            }
+            return new PeerConnection(host, port, socket, channel, handshakeReply);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        // Um peer que não aceita a ligação conta como inacessível, como uma ligação recusada
+        try {
+            socket.connect(new InetSocketAddress(host, port), HANDSHAKE_TIMEOUT_MS);
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            throw new ConnectException("Sem resposta à ligação a " + host + ":" + port);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    // Troca de uma mensagem com um nó antigo, num socket só para ela: a mensagem vai
+    // sem envelope (MessageFrame.UNTAGGED), como a enviavam os nós antigos
+    private static Object exchange(String host, int port, Object message, int timeoutMillis) throws IOException {
+        try (Socket socket = connect(host, port)) {
+            socket.setSoTimeout(timeoutMillis);
+            MessageChannel channel = new ObjectMessageChannel(socket.getInputStream(), socket.getOutputStream());
+            channel.writeMessage(MessageFrame.UNTAGGED, message);
+            return channel.readMessage().getMessage();
+        }
+    }
+
+    // Um nó antigo responde ao handshake binário com o cabeçalho de um stream de
+    // serialização Java antes de fechar a ligação
+    private static void checkNotObjectStream(InputStream in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first == -1) {
+            throw new EOFException("Ligação fechada pelo peer durante o handshake");
+        }
+        if (first == MessageChannel.OBJECT_STREAM_MAGIC) {
+            throw new ProtocolMismatchException("resposta em serialização Java");
+        }
+    }
+
+    public String getPeerKey() {
+        return host + ":" + port;
+    }
+
+    public NewConnectionRequest getHandshakeReply() {
+        return handshakeReply;
+    }
+
+    // Envia um pedido sem esperar pela resposta
+    public CompletableFuture<Object> sendRequest(Object message) throws IOException {
+        if (closed) {
+            throw new IOException("Ligação fechada: " + getPeerKey());
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        pendingRequests.put(requestId, future);
+        lastUsed = System.currentTimeMillis();
+
+        if (socket == null) {
+            LEGACY_EXECUTOR.execute(() -> sendLegacy(requestId, message));
+            return future;
+        }
+        try {
+            channel.writeMessage(requestId, message);
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            close();
+            throw e;
+        }
+        return future;
+    }
+
+    private void sendLegacy(long requestId, Object message) {
+        Object response = null;
+        IOException failure = null;
+        try {
+            response = exchange(host, port, message, LEGACY_REQUEST_TIMEOUT_MS);
+        } catch (IOException e) {
+            failure = e;
+        }
+        lastUsed = System.currentTimeMillis();
+        abandonedRequests.remove(requestId);
+        CompletableFuture<Object> future = pendingRequests.remove(requestId);
+        if (future == null) {
+            return;  // Cancelado, fora do prazo ou ligação fechada
+        }
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        } else {
+            future.complete(response);
+        }
+    }
+
+    // Envia um pedido com prazo: se a resposta não chegar a tempo o futuro falha com
+    // TimeoutException e o pedido é cancelado no peer
+    public CompletableFuture<Object> sendRequest(Object message, long timeoutMillis) throws IOException {
+        CompletableFuture<Object> future = sendRequest(message);
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenCompleteAsync((response, error) -> {
+            if (error instanceof TimeoutException) {
+                cancel(future);
+            }
+        });
+        return future;
+    }
+
+    // Desiste de um pedido: o futuro é cancelado e, no protocolo binário, o peer é
+    // avisado para não enviar a resposta se o pedido ainda estiver na fila
+    public void cancel(CompletableFuture<Object> future) {
+        Long requestId = null;
+        for (Map.Entry<Long, CompletableFuture<Object>> entry : pendingRequests.entrySet()) {
+            if (entry.getValue() == future) {
+                requestId = entry.getKey();
+                break;
+            }
+        }
+        future.cancel(false);
+        if (requestId == null || pendingRequests.remove(requestId) == null) {
+            return;  // A resposta já chegou
+        }
+
+        long now = System.currentTimeMillis();
+        abandonedRequests.values().removeIf(abandonedAt -> now - abandonedAt > ABANDONED_TTL_MS);
+        abandonedRequests.put(requestId, now);
+
+        // Nós antigos (serialização Java) não conhecem o cancelamento
+        if (channel instanceof BinaryMessageChannel && !closed) {
+            try {
+                channel.writeMessage(requestId, new CancelRequestMessage());
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    // Envia um pedido e espera pela resposta
+    public Object request(Object message) throws IOException {
+        return await(sendRequest(message));
+    }
+
+    // Envia um pedido e espera pela resposta, no máximo timeoutMillis
+    public Object request(Object message, long timeoutMillis) throws IOException {
+        return await(sendRequest(message, timeoutMillis));
+    }
+
+    private Object await(CompletableFuture<Object> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pedido interrompido: " + getPeerKey());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof TimeoutException) {
+                throw new IOException("Sem resposta de " + getPeerKey() + " dentro do prazo");
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                MessageFrame frame = channel.readMessage();
+                CompletableFuture<Object> future = pendingRequests.remove(frame.getRequestId());
+                if (future != null) {
+                    future.complete(frame.getMessage());
+                } else if (abandonedRequests.remove(frame.getRequestId()) == null) {
+                    System.err.println("[ERRO] Resposta sem pedido de " + getPeerKey() + ": " + frame.getMessage());
+                }
+                lastUsed = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("[ERRO] Ligação a " + getPeerKey() + " terminada: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Uma ligação está inativa se não tem pedidos pendentes há mais do que o tempo indicado
+    public boolean isIdle(long timeoutMillis) {
+        return pendingRequests.isEmpty() && System.currentTimeMillis() - lastUsed > timeoutMillis;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignora, a ligação já está a ser fechada
+            }
+        }
+        // Falha todos os pedidos que ficaram sem resposta
+        IOException failure = new IOException("Ligação fechada: " + getPeerKey());
+        for (CompletableFuture<Object> future : pendingRequests.values()) {
+            future.completeExceptionally(failure);
+        }
+        pendingRequests.clear();
+    }
+
+    // O peer fala outro protocolo: a ligação pode ser repetida com serialização Java
+    public static class ProtocolMismatchException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ProtocolMismatchException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Conjunto de ligações persistentes, uma por peer, reutilizadas por
+// pesquisas, downloads e handshakes
+public class PeerConnectionPool {
+
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+
+    private final String localHost;
+    private final int listenPort;
+    // Uma ligação (ou a abertura em curso) por peer
+    private final Map<String, CompletableFuture<PeerConnection>> connections = new ConcurrentHashMap<>();
+    // Peers que não falam o protocolo binário e usam serialização Java
+    private final Set<String> legacyPeers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService idleReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PeerConnectionPool(String localHost, int listenPort) {
+        this.localHost = localHost;
+        this.listenPort = listenPort;
+        idleReaper.scheduleAtFixedRate(this::closeIdleConnections, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    // Devolve a ligação ao peer, abrindo uma nova se não existir ou se a anterior fechou.
+    // A ligação é aberta fora do mapa: só quem pede o mesmo peer espera por ela.
+    public PeerConnection getConnection(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        while (true) {
+            CompletableFuture<PeerConnection> future = connections.get(key);
+            if (future == null) {
+                CompletableFuture<PeerConnection> opening = new CompletableFuture<>();
+                future = connections.putIfAbsent(key, opening);
+                if (future == null) {
+                    return open(host, port, key, opening);
+                }
+            }
+            PeerConnection connection = await(future, key);
+            if (!connection.isClosed()) {
+                return connection;
+            }
+            connections.remove(key, future);
+        }
+    }
+
+    private PeerConnection open(String host, int port, String key, CompletableFuture<PeerConnection> opening) throws IOException {
+        try {
+            PeerConnection connection = openConnection(host, port, key);
+            opening.complete(connection);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            // Sem ligação no mapa: o próximo pedido volta a tentar
+            connections.remove(key, opening);
+            opening.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // Espera pela abertura feita por outra thread e partilha o seu resultado
+    private static PeerConnection await(CompletableFuture<PeerConnection> future, String key) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ligação a " + key + " interrompida");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Abre uma ligação ao peer fora do conjunto, que o chamador tem de fechar. Serve
+    // para repetir um pedido que está atrás de outros na ligação partilhada.
+    public PeerConnection openSeparateConnection(String host, int port) throws IOException {
+        return openConnection(host, port, host + ":" + port);
+    }
+
+    // Negocia o protocolo no handshake: tenta o binário e, se o peer responder
+    // como um nó antigo, volta a ligar com serialização Java
+    private PeerConnection openConnection(String host, int port, String key) throws IOException {
+        NewConnectionRequest hello = new NewConnectionRequest(localHost, listenPort);
+        if (!legacyPeers.contains(key)) {
+            try {
+                return PeerConnection.open(host, port, hello, true);
+            } catch (PeerConnection.ProtocolMismatchException e) {
+                // Só uma resposta noutro protocolo muda o peer para serialização Java;
+                // as outras falhas de ligação propagam-se e o binário é tentado de novo
+                System.out.println("[INFO] " + key + " não suporta o protocolo binário (" + e.getMessage() + "), a usar serialização Java");
+                legacyPeers.add(key);
+            }
+        }
+        return PeerConnection.open(host, port, hello, false);
+    }
+
+    private void closeIdleConnections() {
+        for (Map.Entry<String, CompletableFuture<PeerConnection>> entry : connections.entrySet()) {
+            PeerConnection connection = entry.getValue().getNow(null);
+            if (connection == null) {
+                continue;  // Ainda a abrir
+            }
+            if (connection.isClosed() || connection.isIdle(IDLE_TIMEOUT_MS)) {
+                if (connections.remove(entry.getKey(), entry.getValue())) {
+                    connection.close();
+                    System.out.println("[INFO] Ligação inativa fechada: " + entry.getKey());
+                }
+            }
+        }
+    }
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (CompletableFuture<PeerConnection> future : connections.values()) {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    public void closeAll() {
+        for (CompletableFuture<PeerConnection> future : connections.values()) {
+            // Uma ligação ainda a abrir é fechada logo que o handshake termine
+            future.thenAccept(PeerConnection::close);
+        }
+        connections.clear();
+    }
+}
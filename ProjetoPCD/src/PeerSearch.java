@@ -0,0 +1,263 @@
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Uma pesquisa enviada a todos os peers conhecidos. Os resultados de cada peer
+// são entregues ao SearchListener assim que chegam, e a pesquisa termina
+// quando todos responderam ou quando passa o prazo, sem esperar por peers
+// parados.
+//
+// Um peer que ainda não respondeu ao fim de HEDGE_DELAY_MS recebe o mesmo
+// pedido numa ligação separada, porque a ligação partilhada pode estar atrás
+// dos blocos de um download ou parada. Conta a primeira resposta e o outro
+// pedido é cancelado. Um pedido que falha é repetido logo da mesma forma.
+//
+// Os peers cuja resposta está na SearchCache respondem logo a partir dela.
+// Se a resposta guardada expirou, o pedido leva a geração do índice dessa
+// resposta e o peer só envia resultados se o índice mudou.
+public class PeerSearch {
+
+    private static final long HEDGE_DELAY_MS = Long.getLong("isctorrent.searchHedgeMs", 500);
+
+    private final String keyword;
+    private final PeerConnectionPool connectionPool;
+    private final SearchCache cache;
+    private final Executor executor;
+    private final SearchListener listener;
+    private final List<PeerQuery> queries = new ArrayList<>();
+
+    // O estado seguinte e o das consultas é protegido pelo monitor da pesquisa
+    private boolean finished = false;
+    private int answered = 0;
+    private int done = 0;
+
+    public PeerSearch(String keyword, List<PeerInfo> peers, PeerConnectionPool connectionPool, SearchCache cache,
+                      Executor executor, SearchListener listener) {
+        this.keyword = keyword;
+        this.connectionPool = connectionPool;
+        this.cache = cache;
+        this.executor = executor;
+        this.listener = listener;
+        for (PeerInfo peer : peers) {
+            queries.add(new PeerQuery(peer));
+        }
+    }
+
+    // Envia a pesquisa a todos os peers; ao fim de deadlineMillis termina com as respostas que houver
+    public synchronized void start(long deadlineMillis) {
+        if (queries.isEmpty()) {
+            finish();
+            return;
+        }
+        for (PeerQuery query : queries) {
+            List<FileSearchResult> cached = cache.lookup(query.peerKey, keyword);
+            if (cached != null) {
+                deliver(query, cached);
+                continue;
+            }
+            query.stale = cache.stale(query.peerKey, keyword);
+            query.message = new WordSearchMessage(keyword, 0, query.stale == null ? 0 : query.stale.getGeneration());
+            query.outstanding++;
+            executor.execute(() -> send(query, false));
+        }
+        if (finished) {
+            return;  // Todas as respostas vieram da cache
+        }
+        CompletableFuture.delayedExecutor(HEDGE_DELAY_MS, TimeUnit.MILLISECONDS, executor).execute(this::hedgeSlowPeers);
+        CompletableFuture.delayedExecutor(deadlineMillis, TimeUnit.MILLISECONDS, executor).execute(this::finish);
+    }
+
+    // Termina a pesquisa já, ignorando as respostas que ainda faltam
+    public void cancel() {
+        finish();
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private void send(PeerQuery query, boolean separate) {
+        PeerConnection connection = null;
+        try {
+            synchronized (this) {
+                if (finished || query.done) {
+                    return;
+                }
+            }
+            PeerInfo peer = query.peer;
+            connection = separate
+                    ? connectionPool.openSeparateConnection(peer.getHost(), peer.getPort())
+                    : connectionPool.getConnection(peer.getHost(), peer.getPort());
+            Attempt attempt = new Attempt(connection, connection.sendRequest(query.message), separate);
+            synchronized (this) {
+                if (finished || query.done) {
+                    abandon(attempt);
+                    return;
+                }
+                query.attempts.add(attempt);
+            }
+            attempt.future.whenComplete((response, error) -> onAnswer(query, attempt, response, error));
+        } catch (IOException e) {
+            if (separate && connection != null) {
+                connection.close();
+            }
+            failed(query, null, e);
+        }
+    }
+
+    private synchronized void onAnswer(PeerQuery query, Attempt attempt, Object response, Throwable error) {
+        if (error != null) {
+            failed(query, attempt, error);
+            return;
+        }
+        query.outstanding--;
+        query.attempts.remove(attempt);
+        if (attempt.separate) {
+            attempt.connection.close();
+        }
+        if (finished || query.done) {
+            return;
+        }
+        query.done = true;
+        abandonAll(query);
+
+        List<FileSearchResult> results = new ArrayList<>();
+        if (response instanceof SearchResultsMessage answer) {
+            // Sem alterações: os resultados guardados continuam válidos
+            if (!answer.isNotModified()) {
+                results = answer.getResults();
+            } else if (query.stale != null) {
+                results = query.stale.getResults();
+            }
+            cache.store(query.peerKey, keyword, answer.getGeneration(), results);
+        } else if (response instanceof List<?> list) {
+            // Nós antigos respondem só com a lista, sem a geração do índice
+            for (Object o : list) {
+                if (o instanceof FileSearchResult fsr) {
+                    results.add(fsr);
+                }
+            }
+            cache.store(query.peerKey, keyword, 0, results);
+        }
+        deliver(query, results);
+    }
+
+    private void deliver(PeerQuery query, List<FileSearchResult> results) {
+        query.done = true;
+        answered++;
+        listener.onResults(query.peerKey, results);
+        peerDone();
+    }
+
+    private synchronized void failed(PeerQuery query, Attempt attempt, Throwable error) {
+        query.outstanding--;
+        if (attempt != null) {
+            query.attempts.remove(attempt);
+            if (attempt.separate) {
+                attempt.connection.close();
+            }
+        }
+        if (finished || query.done) {
+            return;
+        }
+        if (!query.hedged) {
+            // A ligação partilhada falhou: tenta logo numa ligação nova
+            hedge(query);
+            return;
+        }
+        if (query.outstanding == 0) {
+            System.err.println("[ERRO] Erro ao comunicar com o peer " + query.peerKey + ": " + error.getMessage());
+            query.done = true;
+            peerDone();
+        }
+    }
+
+    private synchronized void hedgeSlowPeers() {
+        if (finished) {
+            return;
+        }
+        for (PeerQuery query : queries) {
+            if (!query.done && !query.hedged) {
+                System.out.println("[INFO] Pesquisa sem resposta de " + query.peerKey + " após " + HEDGE_DELAY_MS
+                        + " ms, a repetir numa ligação separada");
+                hedge(query);
+            }
+        }
+    }
+
+    private void hedge(PeerQuery query) {
+        query.hedged = true;
+        query.outstanding++;
+        executor.execute(() -> send(query, true));
+    }
+
+    private void peerDone() {
+        if (++done == queries.size()) {
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (PeerQuery query : queries) {
+            abandonAll(query);
+        }
+        listener.onComplete(answered, queries.size() - answered);
+    }
+
+    private void abandonAll(PeerQuery query) {
+        List<Attempt> attempts = new ArrayList<>(query.attempts);
+        query.attempts.clear();
+        for (Attempt attempt : attempts) {
+            abandon(attempt);
+        }
+    }
+
+    // Desiste de um pedido que já não interessa; as ligações separadas são fechadas
+    private static void abandon(Attempt attempt) {
+        attempt.connection.cancel(attempt.future);
+        if (attempt.separate) {
+            attempt.connection.close();
+        }
+    }
+
+    private static class PeerQuery {
+
+        private final PeerInfo peer;
+        private final String peerKey;
+        private final List<Attempt> attempts = new ArrayList<>();
+        private WordSearchMessage message;
+        // Resposta expirada da cache, confirmada se o índice do peer não tiver mudado
+        private SearchCache.CachedResults stale;
+        // Pedidos enviados (ou a enviar) ainda sem resposta nem erro
+        private int outstanding = 0;
+        private boolean hedged = false;
+        private boolean done = false;
+
+        private PeerQuery(PeerInfo peer) {
+            this.peer = peer;
+            this.peerKey = peer.getHost() + ":" + peer.getPort();
+        }
+    }
+
+    private static class Attempt {
+
+        private final PeerConnection connection;
+        private final CompletableFuture<Object> future;
+        // Enviado numa ligação aberta só para este pedido
+        private final boolean separate;
+
+        private Attempt(PeerConnection connection, CompletableFuture<Object> future, boolean separate) {
+            this.connection = connection;
+            this.future = future;
+            this.separate = separate;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Respostas de cada peer às pesquisas deste nó, guardadas por (peer, pesquisa).
+//
+// Durante TTL_MS uma resposta guardada responde sem contactar o peer, tanto à
+// mesma pesquisa como a pesquisas mais restritas (com mais termos, ou termos
+// mais longos que contêm os anteriores), filtrando os resultados localmente.
+// Depois disso a pesquisa é enviada com a geração do índice da resposta
+// guardada e, se o índice do peer não mudou, ele responde sem resultados e a
+// resposta guardada volta a valer. Uma resposta com outra geração invalida as
+// restantes respostas desse peer. As entradas menos usadas saem primeiro
+// quando a cache enche.
+public class SearchCache {
+
+    private static final long TTL_MS = Long.getLong("isctorrent.searchCacheTtlMs", 30_000);
+    private static final int MAX_ENTRIES = Integer.getInteger("isctorrent.searchCacheEntries", 512);
+
+    // Por ordem de acesso, para retirar as menos usadas
+    private final Map<String, CachedResults> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResults> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+
+    // Resultados guardados que respondem à pesquisa sem contactar o peer; null se não houver
+    public synchronized List<FileSearchResult> lookup(String peerKey, String query) {
+        List<String> terms = terms(query);
+        if (terms.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        CachedResults exact = entries.get(key(peerKey, terms));
+        if (exact != null && exact.isFresh(now)) {
+            hits++;
+            return exact.results;
+        }
+        // Uma pesquisa mais abrangente com a lista completa também serve, filtrada
+        for (CachedResults cached : entries.values()) {
+            if (cached.peerKey.equals(peerKey) && cached.isFresh(now) && cached.isComplete()
+                    && narrows(terms, cached.terms)) {
+                List<FileSearchResult> results = new ArrayList<>();
+                for (FileSearchResult result : cached.results) {
+                    if (matches(result.getFileName(), terms)) {
+                        results.add(result);
+                    }
+                }
+                hits++;
+                return results;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    // Fração das pesquisas respondidas sem contactar o peer
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    // Resposta já expirada do peer a esta pesquisa, que pode ser confirmada com um pedido
+    // condicional; null se não houver ou se o peer não indicou a geração (nós antigos)
+    public synchronized CachedResults stale(String peerKey, String query) {
+        CachedResults cached = entries.get(key(peerKey, terms(query)));
+        return cached != null && cached.generation > 0 ? cached : null;
+    }
+
+    // Guarda a resposta do peer; generation é 0 se o peer não a indicou
+    public synchronized void store(String peerKey, String query, long generation, List<FileSearchResult> results) {
+        if (generation > 0) {
+            // O índice do peer mudou: as outras respostas dele podem estar desatualizadas
+            entries.values().removeIf(cached -> cached.peerKey.equals(peerKey) && cached.generation != generation);
+        }
+        List<String> terms = terms(query);
+        if (!terms.isEmpty()) {
+            entries.put(key(peerKey, terms), new CachedResults(peerKey, terms, generation, Collections.unmodifiableList(new ArrayList<>(results))));
+        }
+    }
+
+    private static String key(String peerKey, List<String> terms) {
+        return peerKey + " " + String.join(" ", terms);
+    }
+
+    // Termos normalizados da pesquisa, sem repetições e por ordem (a ordem não altera os resultados)
+    private static List<String> terms(String query) {
+        return new ArrayList<>(new TreeSet<>(SearchIndex.tokenize(query)));
+    }
+
+    // Cada termo da pesquisa guardada é implicado por um termo da nova
+    private static boolean narrows(List<String> terms, List<String> cachedTerms) {
+        for (String cachedTerm : cachedTerms) {
+            boolean implied = false;
+            for (String term : terms) {
+                if (SearchIndex.termImplies(term, cachedTerm)) {
+                    implied = true;
+                    break;
+                }
+            }
+            if (!implied) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A mesma regra que o SearchIndex usa do lado de quem responde
+    private static boolean matches(String fileName, List<String> terms) {
+        List<String> tokens = SearchIndex.tokenize(fileName);
+        for (String term : terms) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (SearchIndex.termMatches(term, token)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class CachedResults {
+
+        private final String peerKey;
+        private final List<String> terms;
+        private final long generation;
+        private final List<FileSearchResult> results;
+        private final long storedAt = System.currentTimeMillis();
+
+        private CachedResults(String peerKey, List<String> terms, long generation, List<FileSearchResult> results) {
+            this.peerKey = peerKey;
+            this.terms = terms;
+            this.generation = generation;
+            this.results = results;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public List<FileSearchResult> getResults() {
+            return results;
+        }
+
+        private boolean isFresh(long now) {
+            return now - storedAt < TTL_MS;
+        }
+
+        // Uma lista cortada pelo limite de resultados não serve para filtrar outras pesquisas
+        private boolean isComplete() {
+            return results.size() < Node.MAX_SEARCH_RESULTS;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+
+import java.math.BigInteger;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+
+// Índice invertido dos nomes dos ficheiros partilhados, para responder a
+// pesquisas sem percorrer todos os ficheiros.
+//
+// Os nomes são normalizados (minúsculas, sem acentos) e divididos em
+// palavras. Cada palavra aponta para os hashes dos ficheiros que a contêm, e
+// os trigramas de cada palavra apontam para as palavras, o que permite
+// encontrar termos a meio de uma palavra ("tone" em "ringtone"). Termos com
+// menos de três letras procuram palavras começadas por eles. Só o termo mais
+// seletivo é resolvido no índice; os outros são confirmados nas palavras de
+// cada candidato.
+//
+// As alterações são feitas pelo Node com o índice bloqueado; as pesquisas
+// podem decorrer em paralelo.
+public class SearchIndex {
+
+    private static final int GRAM_SIZE = 3;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    private final Map<BigInteger, Set<String>> tokensByHash = new ConcurrentHashMap<>();
+    private final Map<String, Set<BigInteger>> postings = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> tokensByGram = new ConcurrentHashMap<>();
+    private final NavigableSet<String> sortedTokens = new ConcurrentSkipListSet<>();
+
+    // Divide um texto nas palavras usadas pelo índice
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (!isAscii(text)) {
+            // Só nomes com acentos ou outros alfabetos passam pela normalização Unicode
+            String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                    .toLowerCase(Locale.ROOT);
+            for (String token : SEPARATORS.split(normalized)) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+            return tokens;
+        }
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void put(BigInteger hash, String fileName) {
+        Set<String> tokens = new HashSet<>(tokenize(fileName));
+        Set<String> previous = tokensByHash.put(hash, tokens);
+        if (previous != null) {
+            if (previous.equals(tokens)) {
+                return;
+            }
+            removeTokens(hash, previous);
+        }
+        for (String token : tokens) {
+            Set<BigInteger> files = postings.get(token);
+            if (files == null) {
+                files = ConcurrentHashMap.newKeySet();
+                postings.put(token, files);
+                sortedTokens.add(token);
+                for (String gram : grams(token)) {
+                    tokensByGram.computeIfAbsent(gram, g -> ConcurrentHashMap.newKeySet()).add(token);
+                }
+            }
+            files.add(hash);
+        }
+    }
+
+    public void remove(BigInteger hash) {
+        Set<String> tokens = tokensByHash.remove(hash);
+        if (tokens != null) {
+            removeTokens(hash, tokens);
+        }
+    }
+
+    private void removeTokens(BigInteger hash, Set<String> tokens) {
+        for (String token : tokens) {
+            Set<BigInteger> files = postings.get(token);
+            if (files == null) {
+                continue;
+            }
+            files.remove(hash);
+            if (files.isEmpty()) {
+                // A palavra deixou de existir na partilha
+                postings.remove(token);
+                sortedTokens.remove(token);
+                for (String gram : grams(token)) {
+                    Set<String> gramTokens = tokensByGram.get(gram);
+                    if (gramTokens != null) {
+                        gramTokens.remove(token);
+                        if (gramTokens.isEmpty()) {
+                            tokensByGram.remove(gram);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Hashes dos ficheiros cujo nome contém todos os termos da pesquisa, no máximo maxResults
+    public List<BigInteger> search(String query, int maxResults) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty() || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Escolhe o termo com menos ficheiros para gerar os candidatos
+        String bestTerm = null;
+        Set<String> bestTokens = null;
+        long bestCost = Long.MAX_VALUE;
+        for (String term : terms) {
+            Set<String> tokens = tokensMatching(term);
+            if (terms.size() == 1) {
+                bestTerm = term;
+                bestTokens = tokens;
+                break;
+            }
+            long cost = 0;
+            for (String token : tokens) {
+                Set<BigInteger> files = postings.get(token);
+                cost += files == null ? 0 : files.size();
+                if (cost >= bestCost) {
+                    break;
+                }
+            }
+            if (cost == 0) {
+                return Collections.emptyList();
+            }
+            if (cost < bestCost) {
+                bestTerm = term;
+                bestCost = cost;
+                bestTokens = tokens;
+            }
+        }
+
+        // Os candidatos já contêm o termo escolhido; falta confirmar os outros
+        terms.remove(bestTerm);
+        List<BigInteger> results = new ArrayList<>();
+        Set<BigInteger> seen = new HashSet<>();
+        for (String token : bestTokens) {
+            Set<BigInteger> files = postings.get(token);
+            if (files == null) {
+                continue;
+            }
+            for (BigInteger hash : files) {
+                if (seen.add(hash) && matchesAll(hash, terms)) {
+                    results.add(hash);
+                    if (results.size() >= maxResults) {
+                        return results;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    // Confirma nas palavras do ficheiro que todos os termos estão presentes
+    private boolean matchesAll(BigInteger hash, Set<String> terms) {
+        if (terms.isEmpty()) {
+            return true;
+        }
+        Set<String> tokens = tokensByHash.get(hash);
+        if (tokens == null) {
+            return false;
+        }
+        for (String term : terms) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (termMatches(term, token)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Um termo encontra as palavras que o contêm; um termo curto, as que começam por ele
+    public static boolean termMatches(String term, String token) {
+        return term.length() < GRAM_SIZE ? token.startsWith(term) : token.contains(term);
+    }
+
+    // Indica se todas as palavras encontradas por narrower também são encontradas por term,
+    // ou seja, se uma pesquisa com narrower só pode ter menos resultados
+    public static boolean termImplies(String narrower, String term) {
+        return (term.length() >= GRAM_SIZE || narrower.length() < GRAM_SIZE) && termMatches(term, narrower);
+    }
+
+    // Palavras que contêm o termo (ou que começam por ele, em termos curtos)
+    private Set<String> tokensMatching(String term) {
+        if (term.length() < GRAM_SIZE) {
+            return sortedTokens.subSet(term, true, term + Character.MAX_VALUE, false);
+        }
+
+        // Interseção das palavras de cada trigrama do termo, começando pelo menor conjunto
+        List<Set<String>> candidates = new ArrayList<>();
+        for (String gram : grams(term)) {
+            Set<String> tokens = tokensByGram.get(gram);
+            if (tokens == null) {
+                return Collections.emptySet();
+            }
+            candidates.add(tokens);
+        }
+        candidates.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+        Set<String> matching = new HashSet<>();
+        for (String token : candidates.get(0)) {
+            if (token.contains(term)) {
+                matching.add(token);
+            }
+        }
+        return matching;
+    }
+
+    private static Set<String> grams(String token) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_SIZE <= token.length(); i++) {
+            grams.add(token.substring(i, i + GRAM_SIZE));
+        }
+        return grams;
+    }
+}
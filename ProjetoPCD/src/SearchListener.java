@@ -0,0 +1,14 @@
+
+import java.util.List;
+
+// Recebe os resultados de uma pesquisa à medida que cada peer responde.
+// As chamadas de uma pesquisa nunca são simultâneas e onComplete é sempre a última.
+public interface SearchListener {
+
+    // Resultados de um peer (a lista pode estar vazia)
+    void onResults(String peerKey, List<FileSearchResult> results);
+
+    // A pesquisa terminou: todos os peers responderam, o prazo acabou ou foi cancelada.
+    // missing é o número de peers que não responderam.
+    void onComplete(int answered, int missing);
+}
@@ -0,0 +1,31 @@
+
+import java.io.Serializable;
+import java.util.List;
+
+// Resposta a uma pesquisa no protocolo binário: os resultados e a geração do
+// índice do nó que respondeu. Se o pedido indicava a geração atual, os
+// resultados não mudaram e não são enviados (results a null).
+public class SearchResultsMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long generation;
+    private final List<FileSearchResult> results;
+
+    public SearchResultsMessage(long generation, List<FileSearchResult> results) {
+        this.generation = generation;
+        this.results = results;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public List<FileSearchResult> getResults() {
+        return results;
+    }
+
+    public boolean isNotModified() {
+        return results == null;
+    }
+}
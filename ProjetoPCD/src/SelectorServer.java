@@ -0,0 +1,462 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Servidor não bloqueante: um pequeno número de event loops com Selector lê
+// as tramas de todas as ligações e envia as respostas a partir de filas de
+// escrita por ligação. Uma ligação inativa não ocupa nenhuma thread.
+//
+// Os pedidos continuam a ser tratados pelo Node nos seus executores; só a
+// leitura e a escrita nos sockets passam pelos event loops. Só fala o
+// protocolo binário: ligações de nós antigos (serialização Java) são
+// passadas ao tratamento bloqueante do Node.
+public class SelectorServer {
+
+    private static final int EVENT_LOOPS = Integer.getInteger("isctorrent.selectorThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Com mais bytes do que isto à espera de envio a ligação deixa de ler pedidos
+    private static final long MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MS = 120_000;
+    // Tempo máximo que um upload espera pelo envio do seu bloco; depois disso o
+    // peer é dado como parado e a ligação fecha, libertando as threads de upload
+    private static final long WRITE_TIMEOUT_MS = 60_000;
+
+    private final Node node;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    public SelectorServer(Node node, ServerSocketChannel server) throws IOException {
+        this.node = node;
+        this.server = server;
+        this.loops = new EventLoop[EVENT_LOOPS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    public void start() throws IOException {
+        // O primeiro event loop aceita as ligações e distribui-as por todos
+        server.configureBlocking(false);
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "selector-" + i).start();
+        }
+        System.out.println("[INFO] Servidor com Selector ativo (" + loops.length + " event loops)");
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            System.out.println("[INFO] Nova ligação recebida de " + channel.getRemoteAddress());
+            channel.configureBlocking(false);
+            // O cabeçalho e os dados de um bloco seguem em escritas separadas
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            SocketChannel accepted = channel;
+            loop.execute(() -> loop.register(accepted));
+        }
+    }
+
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        // Tarefas pedidas por outras threads, executadas na thread do event loop
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                node.getMetrics().connectionOpened();
+            } catch (IOException e) {
+                System.err.println("[ERRO] Erro ao registar ligação: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(1000);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((Connection) key.attachment()).handle(key);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= 1000) {
+                        lastIdleCheck = now;
+                        closeIdleConnections(now);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Um erro numa ligação não pode parar o event loop das restantes
+                    System.err.println("[ERRO] Erro no event loop: " + e);
+                }
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection && connection.isIdle(now)) {
+                    System.out.println("[INFO] Ligação inativa fechada: " + connection.remoteAddress());
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // Estado de uma ligação: buffer de leitura e fila de respostas por enviar.
+    // Só a thread do event loop lê e escreve no socket; as outras threads
+    // acrescentam respostas à fila com writeMessage.
+    private class Connection implements MessageWriter {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean firstRead = true;
+        private final Deque<PendingWrite> writeQueue = new ArrayDeque<>();
+        // Uploads ainda por enviar, que o peer pode cancelar
+        private final Map<Long, Future<?>> uploads = new ConcurrentHashMap<>();
+        // Compressão dos blocos aceite no handshake (a resposta é preparada noutra thread)
+        private volatile boolean compress = false;
+        private long pendingBytes = 0;
+        private boolean closeAfterWrite = false;
+        private volatile boolean closed = false;
+        private volatile long lastActivity = System.currentTimeMillis();
+        // Última resposta enviada, ou chegada de uma resposta à fila vazia
+        private volatile long lastWrite = System.currentTimeMillis();
+
+        private Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        private void handle(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                System.err.println("[ERRO] Erro na ligação: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();    // O peer fechou a ligação
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+
+            // O primeiro byte indica se o peer usa o protocolo binário ou serialização Java
+            if (firstRead && readBuffer.hasRemaining()) {
+                firstRead = false;
+                if ((readBuffer.get(0) & 0xFF) == MessageChannel.OBJECT_STREAM_MAGIC) {
+                    handOff();
+                    return;
+                }
+            }
+
+            int needed = 0;
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < MessageCodec.HEADER_SIZE || length > MessageCodec.MAX_FRAME_SIZE) {
+                    throw new IOException("Trama com tamanho inválido: " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                byte[] frame = new byte[4 + length];
+                readBuffer.get(frame);
+                dispatch(MessageCodec.readFrame(new DataInputStream(new ByteArrayInputStream(frame))));
+            }
+            readBuffer.compact();
+
+            // Tramas maiores do que o buffer (manifestos, pesquisas grandes) precisam de um buffer maior
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            } else if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+        }
+
+        private void dispatch(MessageFrame frame) throws IOException {
+            long requestId = frame.getRequestId();
+            if (frame.getMessage() instanceof FileBlockRequestMessage request) {
+                node.submitUpload(channel.socket(), this, requestId, request, uploads, compress);
+                return;
+            }
+            if (frame.getMessage() instanceof CancelRequestMessage) {
+                Node.cancelUpload(uploads, requestId);
+                return;
+            }
+            // Pesquisas e manifestos podem demorar: são tratados fora do event loop
+            node.getTaskExecutor().execute(() -> {
+                try {
+                    Object reply = node.handleMessage(frame.getMessage(), true);
+                    if (reply instanceof NewConnectionRequest accepted) {
+                        compress = accepted.hasFeature(NewConnectionRequest.FEATURE_DEFLATE);
+                    }
+                    writeMessage(requestId, reply);
+                } catch (IOException e) {
+                    System.err.println("[ERRO] Erro na ligação: " + e.getMessage());
+                    loop.execute(this::close);
+                }
+            });
+        }
+
+        // Ligação de um nó antigo: sai do Selector e passa a ser lida por uma thread do Node
+        private void handOff() throws IOException {
+            key.cancel();
+            // A ligação volta a ser contada pelo Node
+            node.getMetrics().connectionClosed();
+            byte[] prefix = new byte[readBuffer.remaining()];
+            readBuffer.get(prefix);
+            loop.execute(() -> {
+                try {
+                    // O registo cancelado só é retirado na próxima seleção
+                    loop.selector.selectNow();
+                    channel.configureBlocking(true);
+                    node.handleConnection(channel.socket(),
+                            new SequenceInputStream(new ByteArrayInputStream(prefix), channel.socket().getInputStream()));
+                } catch (IOException e) {
+                    System.err.println("[ERRO] Erro na ligação: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Acrescenta uma resposta à fila de envio. Os blocos (FileRegion) são enviados
+        // pelo event loop diretamente do ficheiro, e a chamada só volta quando o bloco
+        // foi enviado, para o chamador poder fechar o ficheiro.
+        @Override
+        public void writeMessage(long requestId, Object message) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            FileRegion region = null;
+            if (message instanceof FileRegion fileRegion) {
+                region = fileRegion;
+                MessageCodec.writeBlockAnswerHeader(out, requestId, region.getFileName(), region.getOffset(), region.getLength());
+            } else {
+                MessageCodec.writeFrame(out, requestId, message);
+            }
+            PendingWrite write = new PendingWrite(ByteBuffer.wrap(bytes.toByteArray()), region);
+
+            synchronized (writeQueue) {
+                if (closed) {
+                    throw new IOException("Ligação fechada");
+                }
+                if (writeQueue.isEmpty()) {
+                    lastWrite = System.currentTimeMillis();
+                }
+                writeQueue.add(write);
+                pendingBytes += write.size();
+            }
+            loop.execute(() -> {
+                // Mensagem isolada: a ligação fecha depois de a resposta ser enviada
+                if (requestId == MessageFrame.UNTAGGED) {
+                    closeAfterWrite = true;
+                }
+                try {
+                    flush();
+                } catch (IOException e) {
+                    System.err.println("[ERRO] Erro na ligação: " + e.getMessage());
+                    close();
+                }
+            });
+
+            if (region != null) {
+                try {
+                    write.done.get(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Envio interrompido");
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                } catch (TimeoutException e) {
+                    // O fecho falha também os outros envios à espera nesta ligação
+                    loop.execute(this::close);
+                    throw new IOException("O peer " + remoteAddress() + " não lê as respostas");
+                }
+            }
+        }
+
+        // Envia o que o socket aceitar; o resto fica na fila até o socket ter espaço
+        private void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            while (true) {
+                PendingWrite write;
+                synchronized (writeQueue) {
+                    write = writeQueue.peek();
+                }
+                if (write == null) {
+                    break;
+                }
+                if (!write.writeTo(channel)) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    updateReadInterest();
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                lastWrite = lastActivity;
+                synchronized (writeQueue) {
+                    writeQueue.poll();
+                    pendingBytes -= write.size();
+                }
+                write.done.complete(null);
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            updateReadInterest();
+        }
+
+        // Peers que não leem as respostas deixam de ser lidos até a fila esvaziar
+        private void updateReadInterest() {
+            long pending;
+            synchronized (writeQueue) {
+                pending = pendingBytes;
+            }
+            if (pending > MAX_PENDING_WRITE_BYTES || closeAfterWrite) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // Com respostas na fila a ligação só conta como inativa se nenhuma foi
+        // enviada durante WRITE_TIMEOUT_MS (o peer deixou de ler)
+        private boolean isIdle(long now) {
+            synchronized (writeQueue) {
+                if (!writeQueue.isEmpty()) {
+                    return now - lastWrite > WRITE_TIMEOUT_MS;
+                }
+            }
+            return now - lastActivity > IDLE_TIMEOUT_MS;
+        }
+
+        private Object remoteAddress() {
+            return channel.socket().getRemoteSocketAddress();
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            synchronized (writeQueue) {
+                closed = true;
+                for (PendingWrite write : writeQueue) {
+                    write.done.completeExceptionally(new IOException("Ligação fechada"));
+                }
+                writeQueue.clear();
+                pendingBytes = 0;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            node.getMetrics().connectionClosed();
+        }
+    }
+
+    // Resposta por enviar: a trama (ou o cabeçalho de um bloco) e, nos blocos, a região do ficheiro
+    private static class PendingWrite {
+
+        private final ByteBuffer header;
+        private final FileRegion region;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private PendingWrite(ByteBuffer header, FileRegion region) {
+            this.header = header;
+            this.region = region;
+        }
+
+        private long size() {
+            return header.capacity() + (region == null ? 0 : region.getLength());
+        }
+
+        // Devolve true quando tudo foi escrito
+        private boolean writeTo(SocketChannel channel) throws IOException {
+            while (header.hasRemaining()) {
+                if (channel.write(header) == 0) {
+                    return false;
+                }
+            }
+            return region == null || region.transferSome(channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignora, a ligação já não é necessária
+        }
+    }
+}
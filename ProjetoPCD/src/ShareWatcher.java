@@ -0,0 +1,92 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Acompanha a pasta partilhada com um WatchService e atualiza o índice do nó
+// só para os ficheiros que mudaram. As alterações são agrupadas até a pasta
+// ficar algum tempo sem eventos, para não ler ficheiros a meio de uma cópia.
+public class ShareWatcher implements Runnable {
+
+    private static final long QUIET_PERIOD_MS = 500;
+    // Mesmo com eventos contínuos, as alterações são aplicadas ao fim deste tempo
+    private static final long MAX_DELAY_MS = 5_000;
+
+    private final Node node;
+    private final Path dir;
+
+    private ShareWatcher(Node node) {
+        this.node = node;
+        this.dir = Paths.get(node.getWorkDir());
+    }
+
+    public static void start(Node node) {
+        Thread t = new Thread(new ShareWatcher(node));
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+            Set<String> changed = new LinkedHashSet<>();
+            long batchStart = 0;
+            while (true) {
+                WatchKey key = changed.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    boolean overflow = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            if (changed.isEmpty()) {
+                                batchStart = System.currentTimeMillis();
+                            }
+                            changed.add(event.context().toString());
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.err.println("[ERRO] Pasta partilhada deixou de estar acessível: " + dir);
+                        return;
+                    }
+                    if (overflow) {
+                        // Perderam-se eventos: compara a pasta inteira com o índice
+                        changed.clear();
+                        node.refreshFiles();
+                        continue;
+                    }
+                    if (System.currentTimeMillis() - batchStart < MAX_DELAY_MS) {
+                        continue;
+                    }
+                }
+
+                for (String name : changed) {
+                    node.updateFile(new File(dir.toFile(), name));
+                }
+                changed.clear();
+                node.saveHashCache();
+            }
+        } catch (IOException e) {
+            System.err.println("[ERRO] Não foi possível acompanhar a pasta " + dir + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
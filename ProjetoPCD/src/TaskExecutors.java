@@ -0,0 +1,78 @@
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Executores usados pelo nó em vez de criar uma thread por tarefa.
+//
+// Em JDKs com virtual threads (21+) as ligações e os uploads correm em
+// virtual threads; nos restantes é usado um pool de threads daemon. A
+// configuração é feita por propriedades do sistema:
+//   isctorrent.virtualThreads  usar virtual threads se existirem (true)
+//   isctorrent.maxUploads      blocos enviados em simultâneo (16)
+//   isctorrent.uploadQueue     pedidos de blocos em espera (256)
+public final class TaskExecutors {
+
+    public static final boolean VIRTUAL_THREADS = Boolean.parseBoolean(System.getProperty("isctorrent.virtualThreads", "true"));
+    public static final int MAX_UPLOADS = Integer.getInteger("isctorrent.maxUploads", 16);
+    public static final int UPLOAD_QUEUE = Integer.getInteger("isctorrent.uploadQueue", 256);
+
+    private TaskExecutors() {
+    }
+
+    // Executor sem limite para tarefas que passam a maior parte do tempo bloqueadas (ligações, pedidos a peers)
+    public static ExecutorService newTaskExecutor(String name) {
+        if (VIRTUAL_THREADS) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // JDK sem virtual threads
+            }
+        }
+        return Executors.newCachedThreadPool(daemonThreadFactory(name));
+    }
+
+    // Executor de uploads: no máximo MAX_UPLOADS em simultâneo e UPLOAD_QUEUE em espera.
+    // Acima disso recusa a tarefa com RejectedExecutionException.
+    public static ThreadPoolExecutor newUploadExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_UPLOADS, MAX_UPLOADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(UPLOAD_QUEUE), threadFactory("upload"), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Uma thread daemon para tarefas com hora marcada, que têm de ser curtas
+    public static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(daemonThreadFactory(name));
+    }
+
+    // Fábrica de virtual threads se existirem, senão de threads daemon
+    private static ThreadFactory threadFactory(String name) {
+        if (VIRTUAL_THREADS) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // JDK sem virtual threads
+            }
+        }
+        return daemonThreadFactory(name);
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        return r -> {
+            Thread t = defaultFactory.newThread(r);
+            t.setName(name + "-" + t.getName());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
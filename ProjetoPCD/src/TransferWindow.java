@@ -0,0 +1,101 @@
+
+// Ritmo dos pedidos a um peer, ajustado ao débito e ao RTT medidos:
+//  - o tamanho de cada pedido (em blocos) corresponde a cerca de 50 ms de
+//    dados ao débito medido, para que em redes rápidas o custo fixo de cada
+//    pedido deixe de pesar e em ligações lentas os pedidos continuem pequenos;
+//  - o número de pedidos em curso aponta para o dobro do produto débito ×
+//    RTT mínimo: enquanto o débito cresce com a janela ela continua a
+//    crescer, e quando o RTT aumenta por haver fila no caminho deixa de crescer;
+//  - o prazo de cada pedido é um múltiplo do tempo esperado para a resposta
+//    (RTT mínimo mais os bytes pedidos à frente ao débito medido). Um pedido
+//    fora do prazo reduz a janela para metade.
+public class TransferWindow {
+
+    private static final int INITIAL_WINDOW = 4;
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 64;
+    private static final int INITIAL_CHUNK_BLOCKS = 4;
+    // Tempo de transferência que cada pedido deve representar
+    private static final long CHUNK_TARGET_NS = 50_000_000L;
+    // Intervalo em que o débito é medido
+    private static final long SAMPLE_INTERVAL_NS = 200_000_000L;
+    // O RTT mínimo é medido de novo a cada 10 s, para acompanhar mudanças no caminho
+    private static final long MIN_RTT_VALIDITY_NS = 10_000_000_000L;
+    // Prazos dos pedidos: antes da primeira medição, mínimo e máximo
+    private static final long INITIAL_TIMEOUT_MS = 10_000;
+    private static final long MIN_TIMEOUT_MS = 2_000;
+    private static final long MAX_TIMEOUT_MS = 30_000;
+    private static final int TIMEOUT_FACTOR = 4;
+
+    private final int blockSize;
+    private final int maxChunkBlocks;
+    private int size = INITIAL_WINDOW;
+    private int chunkBlocks = INITIAL_CHUNK_BLOCKS;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long minRttSince = System.nanoTime();
+    private double maxThroughput = 0;   // bytes por nanossegundo
+    private long sampleStart = System.nanoTime();
+    private long sampleBytes = 0;
+
+    public TransferWindow(int blockSize) {
+        this.blockSize = blockSize;
+        // Pedidos maiores seriam cortados pelo peer
+        this.maxChunkBlocks = Math.max(1, Node.MAX_BLOCK_REQUEST_LENGTH / blockSize);
+        this.chunkBlocks = Math.min(INITIAL_CHUNK_BLOCKS, maxChunkBlocks);
+    }
+
+    // Pedidos em curso
+    public int size() {
+        return size;
+    }
+
+    // Blocos por pedido
+    public int chunkBlocks() {
+        return chunkBlocks;
+    }
+
+    // Débito máximo medido recentemente, em bytes por nanossegundo (0 antes da primeira medição)
+    public double throughput() {
+        return maxThroughput;
+    }
+
+    // Prazo para a resposta a um pedido que tem bytesAhead bytes pedidos à frente (incluindo os seus)
+    public long requestTimeoutMillis(long bytesAhead) {
+        if (maxThroughput <= 0) {
+            return INITIAL_TIMEOUT_MS;
+        }
+        double expectedMillis = (minRttNanos + bytesAhead / maxThroughput) / 1_000_000;
+        return (long) Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, TIMEOUT_FACTOR * expectedMillis));
+    }
+
+    // Um pedido não teve resposta a tempo: o peer está mais lento do que o medido
+    public void onTimeout() {
+        size = Math.max(MIN_WINDOW, size / 2);
+        chunkBlocks = Math.max(1, chunkBlocks / 2);
+        maxThroughput /= 2;
+    }
+
+    // Regista a resposta a um pedido: o tempo desde o envio e os bytes recebidos
+    public void onAnswer(long rttNanos, int bytes) {
+        long now = System.nanoTime();
+        if (rttNanos < minRttNanos || now - minRttSince > MIN_RTT_VALIDITY_NS) {
+            minRttNanos = Math.max(1, rttNanos);
+            minRttSince = now;
+        }
+
+        sampleBytes += bytes;
+        long elapsed = now - sampleStart;
+        if (elapsed < SAMPLE_INTERVAL_NS) {
+            return;
+        }
+        // O máximo decai devagar, para a janela também poder diminuir
+        double throughput = sampleBytes / (double) elapsed;
+        maxThroughput = Math.max(throughput, maxThroughput * 0.9);
+
+        chunkBlocks = (int) Math.max(1, Math.min(maxChunkBlocks, maxThroughput * CHUNK_TARGET_NS / blockSize));
+        double bdpRequests = maxThroughput * minRttNanos / ((double) chunkBlocks * blockSize);
+        size = (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, Math.ceil(2 * bdpRequests)));
+        sampleStart = now;
+        sampleBytes = 0;
+    }
+}
@@ -3,14 +3,39 @@ import java.io.Serializable;
 
 public class WordSearchMessage implements Serializable {
 
+    private static final long serialVersionUID = 4747557079539940980L;
+
     private String searchWord;
+    // Número máximo de resultados pretendidos; 0 deixa o limite ao critério de quem responde
+    private int maxResults;
+    // Geração do índice do peer a que correspondem os resultados que quem pesquisa já tem
+    // guardados; 0 se não tiver nenhuns. Com a mesma geração o peer responde sem resultados.
+    private long knownGeneration;
 
     public WordSearchMessage(String searchWord) {
+        this(searchWord, 0);
+    }
+
+    public WordSearchMessage(String searchWord, int maxResults) {
+        this(searchWord, maxResults, 0);
+    }
+
+    public WordSearchMessage(String searchWord, int maxResults, long knownGeneration) {
         this.searchWord = searchWord;
+        this.maxResults = maxResults;
+        this.knownGeneration = knownGeneration;
     }
 
     public String getSearchWord() {
         return searchWord;
     }
 
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public long getKnownGeneration() {
+        return knownGeneration;
+    }
+
 }
@@ -0,0 +1,147 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Cliente atual contra um nó do commit base. O servidor abaixo faz o mesmo que o
+// Node original: um objeto por socket, lido por um ObjectInputStream, uma resposta
+// e fecho. Só conhece as classes que esse nó tinha, por isso um MessageEnvelope
+// ou outra mensagem nova falha como falhava no nó original.
+class LegacyPeerTest {
+
+    // serialVersionUID das classes do commit base, calculados com serialver
+    private static final Map<Class<?>, Long> BASELINE_UIDS = Map.of(
+            NewConnectionRequest.class, 2172969641405940124L,
+            WordSearchMessage.class, 4747557079539940980L,
+            FileBlockRequestMessage.class, 1079073285922986332L,
+            FileBlockAnswerMessage.class, -826825293022018621L,
+            FileSearchResult.class, -7929417068266973638L);
+    private static final Set<String> BASELINE_CLASSES = Set.of(
+            "NewConnectionRequest", "WordSearchMessage", "FileBlockRequestMessage", "FileBlockAnswerMessage", "FileSearchResult");
+
+    private static final byte[] FILE = new byte[100_000];
+
+    private ServerSocket server;
+    private final List<String> serverErrors = new CopyOnWriteArrayList<>();
+    private PeerConnectionPool pool;
+
+    @BeforeEach
+    void startBaselineServer() throws IOException {
+        for (int i = 0; i < FILE.length; i++) {
+            FILE[i] = (byte) (i * 31);
+        }
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    new Thread(() -> handle(socket)).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        pool = new PeerConnectionPool("127.0.0.1", 1);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        pool.closeAll();
+        server.close();
+    }
+
+    private void handle(Socket socket) {
+        try (socket; ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                ObjectInputStream in = new BaselineObjectInputStream(socket)) {
+            Object obj = in.readObject();
+            if (obj instanceof NewConnectionRequest) {
+                out.writeObject(new NewConnectionRequest("127.0.0.1", server.getLocalPort()));
+            } else if (obj instanceof WordSearchMessage wsm) {
+                List<FileSearchResult> results = new ArrayList<>();
+                if ("data.bin".contains(wsm.getSearchWord())) {
+                    results.add(new FileSearchResult(wsm, FILE.length, "data.bin", server.getLocalPort(), "127.0.0.1"));
+                }
+                out.writeObject(results);
+            } else if (obj instanceof FileBlockRequestMessage request) {
+                byte[] data = new byte[request.getLength()];
+                System.arraycopy(FILE, (int) request.getOffset(), data, 0, data.length);
+                out.writeObject(new FileBlockAnswerMessage(request.getFileName(), request.getOffset(), data));
+            } else {
+                serverErrors.add("Mensagem inesperada: " + obj);
+            }
+            out.flush();
+        } catch (IOException | ClassNotFoundException e) {
+            // O handshake binário chega aqui (cabeçalho inválido) e é esperado
+            if (!e.getMessage().startsWith("invalid stream header")) {
+                serverErrors.add(e.toString());
+            }
+        }
+    }
+
+    @Test
+    void currentClassesKeepBaselineSerialVersionUids() {
+        for (Map.Entry<Class<?>, Long> entry : BASELINE_UIDS.entrySet()) {
+            assertEquals(entry.getValue(), ObjectStreamClass.lookup(entry.getKey()).getSerialVersionUID(), entry.getKey().getName());
+        }
+    }
+
+    @Test
+    void handshakeSearchAndBlocksRoundTrip() throws IOException {
+        PeerConnection connection = pool.getConnection("127.0.0.1", server.getLocalPort());
+        assertEquals(server.getLocalPort(), connection.getHandshakeReply().getPort());
+
+        Object results = connection.request(new WordSearchMessage("data"), 5_000);
+        assertTrue(results instanceof List<?> list && list.size() == 1, "Resultados: " + results);
+        assertEquals("data.bin", ((FileSearchResult) ((List<?>) results).get(0)).getFileName());
+
+        // Vários pedidos em curso: cada um vai no seu socket
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        int blockSize = 10_240;
+        for (int offset = 0; offset < FILE.length; offset += blockSize) {
+            int length = Math.min(blockSize, FILE.length - offset);
+            futures.add(connection.sendRequest(new FileBlockRequestMessage("data.bin", offset, length), 5_000));
+        }
+        byte[] received = new byte[FILE.length];
+        for (CompletableFuture<Object> future : futures) {
+            FileBlockAnswerMessage answer = (FileBlockAnswerMessage) future.join();
+            System.arraycopy(answer.getData(), 0, received, (int) answer.getOffset(), answer.getData().length);
+        }
+        assertArrayEquals(FILE, received);
+        assertEquals(List.of(), serverErrors);
+    }
+
+    // Só resolve as classes que o nó do commit base tinha
+    private static class BaselineObjectInputStream extends ObjectInputStream {
+
+        BaselineObjectInputStream(Socket socket) throws IOException {
+            super(socket.getInputStream());
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (!name.startsWith("java.") && !name.startsWith("[") && !BASELINE_CLASSES.contains(name)) {
+                throw new ClassNotFoundException(name);
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
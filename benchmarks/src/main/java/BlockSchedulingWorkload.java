@@ -0,0 +1,65 @@
+
+import isctorrent.bench.Workload;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Distribuição dos blocos de um download entre peers, como a fazem as tarefas
+// do DownloadTaskManager: cada operação reserva um pedido no peer e no total
+// (DownloadScheduler), pede blocos ao BlockScheduler, completa-os e regista o
+// débito do peer. Corre em várias threads ao mesmo tempo sobre o mesmo
+// download; quando os blocos acabam começa outro.
+//
+// Parâmetros: peers (peers pelos quais as threads se repartem; menos peers do
+// que threads partilham os limites de cada peer), blocks (blocos por pedido)
+// e fileMb.
+public class BlockSchedulingWorkload implements Workload {
+
+    private final AtomicReference<BlockScheduler> scheduler = new AtomicReference<>();
+    private DownloadScheduler downloads;
+    private String[] peers;
+    private int maxBlocks;
+    private long fileSize;
+
+    @Override
+    public void setUp(Map<String, String> params) {
+        int peerCount = Integer.parseInt(params.getOrDefault("peers", "4"));
+        maxBlocks = Integer.parseInt(params.getOrDefault("blocks", "8"));
+        fileSize = Long.parseLong(params.getOrDefault("fileMb", "256")) * 1024 * 1024;
+        // Os limites de pedidos não usam o nó
+        downloads = new DownloadScheduler(null);
+        peers = new String[peerCount];
+        for (int i = 0; i < peerCount; i++) {
+            peers[i] = "10.0.0." + (i + 1) + ":5000";
+            downloads.register(peers[i]);
+        }
+        scheduler.set(new BlockScheduler(fileSize, DownloadTaskManager.BLOCK_SIZE));
+    }
+
+    @Override
+    public Object run(int worker) throws Exception {
+        int peerIndex = worker % peers.length;
+        String peer = peers[peerIndex];
+        downloads.acquireRequest(peer, true);
+        try {
+            BlockScheduler current = scheduler.get();
+            int allowed = current.allowedBlocks(peer, maxBlocks);
+            if (allowed == 0) {
+                return 0;   // Os blocos que faltam ficam para peers mais rápidos
+            }
+            int[] claim = current.claim(peer, allowed);
+            if (claim == null) {
+                // Todos os blocos foram entregues (ou estão com outras threads): novo download
+                scheduler.compareAndSet(current, new BlockScheduler(fileSize, DownloadTaskManager.BLOCK_SIZE));
+                return 0;
+            }
+            for (int index = claim[0]; index < claim[0] + claim[1]; index++) {
+                current.complete(index);
+            }
+            // Débitos diferentes por peer, para as quotas de allowedBlocks entrarem em jogo
+            current.recordThroughput(peer, (peerIndex + 1) * 1e-3);
+            return claim[1];
+        } finally {
+            downloads.releaseRequest(peer);
+        }
+    }
+}
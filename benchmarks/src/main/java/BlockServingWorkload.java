@@ -0,0 +1,85 @@
+
+import isctorrent.bench.Workload;
+import java.io.File;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+
+// Serve blocos de um ficheiro partilhado com Node.handleBlockRequest e envia-os
+// para um destino que os descarta (/dev/null, onde existir, para o transferTo
+// seguir o mesmo caminho do kernel que segue para um socket).
+//
+// Parâmetros: pattern (uniform: blocos de todo o ficheiro; hot: 64 blocos
+// repetidos, que a BlockCache acaba por guardar), blockCacheMb e mapMinMb
+// (as propriedades do nó com o mesmo nome) e fileMb.
+public class BlockServingWorkload implements Workload {
+
+    private static final int BLOCK_SIZE = DownloadTaskManager.BLOCK_SIZE;
+    private static final int HOT_BLOCKS = 64;
+    // Sequência fixa de offsets percorrida em círculo
+    private static final int OFFSETS = 4096;
+
+    private File dir;
+    private Node node;
+    private String fileName;
+    private BigInteger hash;
+    private long[] offsets;
+    private int next = 0;
+    private WritableByteChannel sink;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        System.setProperty("isctorrent.blockCacheMb", params.getOrDefault("blockCacheMb", "64"));
+        System.setProperty("isctorrent.mapMinMb", params.getOrDefault("mapMinMb", "32"));
+        long fileSize = Long.parseLong(params.getOrDefault("fileMb", "64")) * 1024 * 1024;
+        WorkloadSupport.silence();
+
+        dir = WorkloadSupport.newDirectory("blocks");
+        fileName = "blocos.bin";
+        WorkloadSupport.writeRandomFile(new File(dir, fileName), fileSize, 1);
+        node = WorkloadSupport.newNode(dir);
+        for (Map.Entry<BigInteger, File> entry : node.getFiles().entrySet()) {
+            if (entry.getValue().getName().equals(fileName)) {
+                hash = entry.getKey();
+            }
+        }
+
+        Random random = new Random(2);
+        int blocks = (int) (fileSize / BLOCK_SIZE);
+        int range = "hot".equals(params.get("pattern")) ? Math.min(HOT_BLOCKS, blocks) : blocks;
+        offsets = new long[OFFSETS];
+        for (int i = 0; i < OFFSETS; i++) {
+            offsets[i] = (long) random.nextInt(range) * BLOCK_SIZE;
+        }
+
+        Path devNull = Path.of("/dev/null");
+        sink = Files.exists(devNull)
+                ? FileChannel.open(devNull, StandardOpenOption.WRITE)
+                : Channels.newChannel(OutputStream.nullOutputStream());
+    }
+
+    @Override
+    public Object run(int worker) throws Exception {
+        long offset = offsets[next++ & (OFFSETS - 1)];
+        Object response = node.handleBlockRequest(new FileBlockRequestMessage(fileName, hash, offset, BLOCK_SIZE));
+        if (response instanceof FileRegion region) {
+            try (region) {
+                region.transferTo(sink);
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        sink.close();
+        WorkloadSupport.deleteDirectory(dir);
+    }
+}
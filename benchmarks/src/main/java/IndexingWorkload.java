@@ -0,0 +1,59 @@
+
+import isctorrent.bench.Workload;
+import java.io.File;
+import java.util.Map;
+
+// Indexação da pasta partilhada (Node.refreshFiles, que corre readFiles): lista
+// os ficheiros, calcula o SHA-256 dos que mudaram e atualiza o índice.
+//
+// Parâmetros: layout (many-small: 1000 ficheiros de 64 KB; few-large: 8 de
+// 16 MB) e cache (cold: todos os ficheiros mudam de data antes de cada
+// invocação e são lidos de novo; warm: os hashes vêm da cache).
+public class IndexingWorkload implements Workload {
+
+    private File dir;
+    private Node node;
+    private File[] files;
+    private boolean cold;
+    private long round = 0;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        boolean fewLarge = "few-large".equals(params.get("layout"));
+        int count = fewLarge ? 8 : 1000;
+        long size = fewLarge ? 16L * 1024 * 1024 : 64 * 1024;
+        cold = "cold".equals(params.getOrDefault("cache", "cold"));
+        WorkloadSupport.silence();
+
+        dir = WorkloadSupport.newDirectory("index");
+        files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new File(dir, "ficheiro " + i + ".bin");
+            WorkloadSupport.writeRandomFile(files[i], size, i);
+        }
+        node = WorkloadSupport.newNode(dir);
+    }
+
+    @Override
+    public void beforeInvocation() {
+        if (!cold) {
+            return;
+        }
+        // Uma data nova invalida a entrada da cache de hashes sem mudar o conteúdo
+        long modified = System.currentTimeMillis() - 3_600_000 + (++round) * 1000;
+        for (File file : files) {
+            file.setLastModified(modified);
+        }
+    }
+
+    @Override
+    public Object run(int worker) throws Exception {
+        node.refreshFiles();
+        return node.getFiles().size();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        WorkloadSupport.deleteDirectory(dir);
+    }
+}
@@ -0,0 +1,77 @@
+
+import isctorrent.bench.Workload;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Random;
+
+// Codificação e descodificação das tramas de pedido e resposta de blocos
+// (MessageCodec.writeFrame e readFrame) em memória.
+//
+// Parâmetros: op (encodeRequest, decodeRequest, encodeAnswer ou decodeAnswer)
+// e blockSize (bytes de dados de cada resposta).
+public class MessageCodecWorkload implements Workload {
+
+    private static final int ENCODE_REQUEST = 0;
+    private static final int DECODE_REQUEST = 1;
+    private static final int ENCODE_ANSWER = 2;
+    private static final int DECODE_ANSWER = 3;
+
+    private int op;
+    private FileBlockRequestMessage request;
+    private FileBlockAnswerMessage answer;
+    private byte[] encodedRequest;
+    private byte[] encodedAnswer;
+    private ByteArrayOutputStream buffer;
+    private DataOutputStream out;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        switch (params.getOrDefault("op", "encodeRequest")) {
+            case "decodeRequest" -> op = DECODE_REQUEST;
+            case "encodeAnswer" -> op = ENCODE_ANSWER;
+            case "decodeAnswer" -> op = DECODE_ANSWER;
+            default -> op = ENCODE_REQUEST;
+        }
+        int blockSize = Integer.parseInt(params.getOrDefault("blockSize", String.valueOf(DownloadTaskManager.BLOCK_SIZE)));
+        Random random = new Random(4);
+        byte[] data = new byte[blockSize];
+        random.nextBytes(data);
+        BigInteger hash = new BigInteger(256, random);
+        request = new FileBlockRequestMessage("ferias verao 2024.mp4", hash, 123L * blockSize, blockSize);
+        answer = new FileBlockAnswerMessage("ferias verao 2024.mp4", 123L * blockSize, data);
+
+        buffer = new ByteArrayOutputStream(blockSize + 256);
+        out = new DataOutputStream(buffer);
+        encodedRequest = encode(request);
+        encodedAnswer = encode(answer);
+    }
+
+    private byte[] encode(Object message) throws Exception {
+        buffer.reset();
+        MessageCodec.writeFrame(out, 1, message);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public Object run(int worker) throws Exception {
+        switch (op) {
+            case ENCODE_REQUEST:
+                buffer.reset();
+                MessageCodec.writeFrame(out, worker, request);
+                return buffer.size();
+            case DECODE_REQUEST:
+                return MessageCodec.readFrame(new DataInputStream(new ByteArrayInputStream(encodedRequest)));
+            case ENCODE_ANSWER:
+                buffer.reset();
+                MessageCodec.writeFrame(out, worker, answer);
+                return buffer.size();
+            default:
+                return MessageCodec.readFrame(new DataInputStream(new ByteArrayInputStream(encodedAnswer)));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+
+import isctorrent.bench.Workload;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Random;
+
+// Responde a uma pesquisa (Node.handleMessage com WordSearchMessage, o caminho
+// de handleWordSearch) numa partilha sintética. Os ficheiros só existem no
+// índice: são registados com hashes inventados, sem serem criados no disco.
+//
+// Parâmetros: files (tamanho da partilha) e query (texto pesquisado).
+public class WordSearchWorkload implements Workload {
+
+    private static final String[] WORDS = {
+        "relatorio", "ferias", "musica", "album", "video", "foto", "projeto", "aula",
+        "final", "versao", "copia", "backup", "documento", "apresentacao", "dados", "tese",
+        "capitulo", "episodio", "temporada", "concerto", "praia", "lisboa", "porto", "verao"
+    };
+    private static final String[] EXTENSIONS = {".pdf", ".mp3", ".mp4", ".jpg", ".txt", ".zip"};
+
+    private File dir;
+    private Node node;
+    private WordSearchMessage message;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        int files = Integer.parseInt(params.getOrDefault("files", "10000"));
+        WorkloadSupport.silence();
+
+        dir = WorkloadSupport.newDirectory("search");
+        node = WorkloadSupport.newNode(dir);
+        Random random = new Random(3);
+        for (int i = 0; i < files; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                    + " " + i + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            node.updateFile(new File(dir, name), new BigInteger(256, random));
+        }
+        message = new WordSearchMessage(params.getOrDefault("query", "ferias"));
+    }
+
+    @Override
+    public Object run(int worker) throws Exception {
+        return node.handleMessage(message, true);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        WorkloadSupport.deleteDirectory(dir);
+    }
+}
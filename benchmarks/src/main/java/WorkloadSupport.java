@@ -0,0 +1,68 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Utilitários partilhados pelos workloads: pastas temporárias, ficheiros com
+// conteúdo aleatório e nós que não escrevem no stdout durante as medições
+final class WorkloadSupport {
+
+    private WorkloadSupport() {
+    }
+
+    // O nó regista cada ficheiro e cada pedido no stdout, o que dominaria as medições
+    static void silence() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    // Nó numa porta livre, sem acompanhar a pasta (os benchmarks alteram-na de propósito)
+    static Node newNode(File dir) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        return new Node(dir.getAbsolutePath(), port, false);
+    }
+
+    static File newDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("isctorrent-" + prefix).toFile();
+    }
+
+    // Ficheiro com bytes aleatórios, sempre os mesmos para a mesma semente
+    static void writeRandomFile(File file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] chunk = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < size) {
+                random.nextBytes(chunk);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    static void deleteDirectory(File dir) throws IOException {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
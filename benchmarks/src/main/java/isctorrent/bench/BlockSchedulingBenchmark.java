@@ -0,0 +1,62 @@
+package isctorrent.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Distribuição de blocos de um download por várias threads em simultâneo, com
+// os limites de pedidos por peer e no total (mude o número de threads com -t)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BlockSchedulingBenchmark {
+
+    @Param({"1", "4", "16"})
+    public String peers;
+
+    @Param({"1", "8"})
+    public String blocks;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("BlockSchedulingWorkload");
+        workload.setUp(Map.of("peers", peers, "blocks", blocks));
+    }
+
+    // Número de cada thread, que escolhe o peer a que ela pede blocos
+    @State(Scope.Thread)
+    public static class Worker {
+
+        private static final AtomicInteger NEXT = new AtomicInteger();
+
+        public int id;
+
+        @Setup
+        public void setUp() {
+            id = NEXT.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public Object claimAndComplete(Worker worker) throws Exception {
+        return workload.run(worker.id);
+    }
+}
@@ -0,0 +1,54 @@
+package isctorrent.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Um bloco de 10 KB servido por Node.handleBlockRequest: pelo FileChannel, pelo
+// ficheiro mapeado ou pela BlockCache, conforme os parâmetros
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockServingBenchmark {
+
+    @Param({"uniform", "hot"})
+    public String pattern;
+
+    @Param({"0", "64"})
+    public String blockCacheMb;
+
+    @Param({"0", "32"})
+    public String mapMinMb;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("BlockServingWorkload");
+        workload.setUp(Map.of("pattern", pattern, "blockCacheMb", blockCacheMb, "mapMinMb", mapMinMb));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object serveBlock() throws Exception {
+        return workload.run(0);
+    }
+}
@@ -0,0 +1,58 @@
+package isctorrent.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Leitura da pasta partilhada com o cálculo dos SHA-256 (readFiles), com a
+// cache de hashes inválida (cold) ou válida (warm)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexingBenchmark {
+
+    @Param({"many-small", "few-large"})
+    public String layout;
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("IndexingWorkload");
+        workload.setUp(Map.of("layout", layout, "cache", cache));
+    }
+
+    // Cada invocação demora milissegundos, o que torna o custo deste passo desprezável
+    @Setup(Level.Invocation)
+    public void beforeInvocation() throws Exception {
+        workload.beforeInvocation();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object readFiles() throws Exception {
+        return workload.run(0);
+    }
+}
@@ -0,0 +1,46 @@
+package isctorrent.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Tramas binárias de FileBlockRequestMessage e FileBlockAnswerMessage
+// codificadas e descodificadas em memória
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"encodeRequest", "decodeRequest", "encodeAnswer", "decodeAnswer"})
+    public String op;
+
+    // Só conta nas respostas: 10 KB (um bloco) ou 1 MB (o maior pedido servido)
+    @Param({"10240", "1048576"})
+    public String blockSize;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("MessageCodecWorkload");
+        workload.setUp(Map.of("op", op, "blockSize", blockSize));
+    }
+
+    @Benchmark
+    public Object codec() throws Exception {
+        return workload.run(1);
+    }
+}
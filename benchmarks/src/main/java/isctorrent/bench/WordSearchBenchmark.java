@@ -0,0 +1,52 @@
+package isctorrent.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Resposta a uma WordSearchMessage (handleWordSearch) em partilhas sintéticas
+// de 10 mil a um milhão de ficheiros: uma palavra comum, duas palavras, um
+// pedaço de palavra (pesquisa por trigramas) e uma palavra sem resultados
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WordSearchBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public String files;
+
+    @Param({"ferias", "musica final", "eri", "inexistente"})
+    public String query;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("WordSearchWorkload");
+        workload.setUp(Map.of("files", files, "query", query));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object search() throws Exception {
+        return workload.run(0);
+    }
+}
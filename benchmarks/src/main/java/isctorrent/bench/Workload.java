@@ -0,0 +1,34 @@
+package isctorrent.bench;
+
+import java.util.Map;
+
+// Operação medida por um benchmark.
+//
+// As classes do IscTorrent estão no pacote por omissão, que não pode ser
+// importado de outro pacote, e o JMH não aceita benchmarks nesse pacote. Por
+// isso cada operação é implementada por uma classe do pacote por omissão
+// (BlockServingWorkload, ...), carregada pelo nome, e o benchmark só a chama
+// através desta interface.
+public interface Workload {
+
+    // Prepara os dados com os parâmetros do benchmark
+    void setUp(Map<String, String> params) throws Exception;
+
+    // Antes de cada invocação, fora da medição (só nos benchmarks com Level.Invocation)
+    default void beforeInvocation() throws Exception {
+    }
+
+    // A operação medida; worker identifica a thread nos benchmarks concorrentes
+    Object run(int worker) throws Exception;
+
+    default void tearDown() throws Exception {
+    }
+
+    static Workload load(String className) {
+        try {
+            return (Workload) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Workload não encontrado: " + className, e);
+        }
+    }
+}